@@ -0,0 +1,50 @@
+package rs.ltt.autocrypt.benchmarks;
+
+import java.net.IDN;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rs.ltt.autocrypt.client.Addresses;
+
+/**
+ * Compares {@link Addresses#normalize(String)} with the plain IDN based normalization it replaced
+ * for addresses that are already normalized, addresses that only need lower casing and addresses
+ * with an internationalized domain.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AddressesBenchmark {
+
+    @Param({"alice@example.com", "Alice@Example.com", "alice@bücher.example"})
+    public String address;
+
+    @Benchmark
+    public String normalize() {
+        return Addresses.normalize(address);
+    }
+
+    @Benchmark
+    public String idnNormalize() {
+        final String normalized = address.trim().toLowerCase(Locale.ROOT);
+        final int atPosition = normalized.lastIndexOf('@');
+        if (atPosition == -1) {
+            return normalized;
+        }
+        final String mailbox = normalized.substring(0, atPosition);
+        final String domain = IDN.toASCII(normalized.substring(atPosition + 1));
+        return String.format("%s@%s", mailbox, domain);
+    }
+}
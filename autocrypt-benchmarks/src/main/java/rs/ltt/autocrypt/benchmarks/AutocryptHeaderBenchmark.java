@@ -0,0 +1,70 @@
+package rs.ltt.autocrypt.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rs.ltt.autocrypt.client.header.Attribute;
+import rs.ltt.autocrypt.client.header.AutocryptHeader;
+import rs.ltt.autocrypt.client.header.Headers;
+
+/** Parsing and formatting of Autocrypt headers carrying a real (Curve25519) key. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AutocryptHeaderBenchmark {
+
+    private AutocryptHeader autocryptHeader;
+    private String headerValue;
+
+    @Setup
+    public void setup() throws ExecutionException, InterruptedException {
+        this.autocryptHeader = Keys.newAutocryptHeader("alice@example.com");
+        this.headerValue = autocryptHeader.toHeaderValue();
+    }
+
+    @Benchmark
+    public AutocryptHeader parse() {
+        return AutocryptHeader.parse(headerValue);
+    }
+
+    @Benchmark
+    public byte[] parseAndGetKeyData() {
+        return AutocryptHeader.parse(headerValue).getKeyData();
+    }
+
+    @Benchmark
+    public AutocryptHeader parseMismatchingAddress() {
+        return AutocryptHeader.parse(headerValue, "bob@example.com"::equals);
+    }
+
+    @Benchmark
+    public List<Attribute> parseAttributes() {
+        return Attribute.parse(headerValue);
+    }
+
+    @Benchmark
+    public String toHeaderValue() {
+        return autocryptHeader.toHeaderValue();
+    }
+
+    @Benchmark
+    public StringBuilder writeFolded() throws IOException {
+        final StringBuilder builder = new StringBuilder(1024);
+        autocryptHeader.writeTo(builder, Headers.AUTOCRYPT_GOSSIP.length() + 2);
+        return builder;
+    }
+}
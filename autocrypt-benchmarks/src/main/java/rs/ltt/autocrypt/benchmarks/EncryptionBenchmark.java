@@ -0,0 +1,79 @@
+package rs.ltt.autocrypt.benchmarks;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pgpainless.decryption_verification.DecryptionStream;
+import org.pgpainless.encryption_signing.EncryptionStream;
+import rs.ltt.autocrypt.client.SimpleAutocryptClient;
+
+/** Encryption from Alice to Bob and decryption by Bob at several payload sizes. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncryptionBenchmark {
+
+    private static final Collection<String> RECIPIENTS = Collections.singleton("bob@example.com");
+
+    @Param({"1024", "65536", "1048576"})
+    public int payloadSize;
+
+    private SimpleAutocryptClient aliceClient;
+    private SimpleAutocryptClient bobClient;
+    private byte[] plaintext;
+    private byte[] ciphertext;
+
+    @Setup
+    public void setup() throws ExecutionException, InterruptedException, IOException {
+        this.aliceClient = Keys.newClient("alice@example.com");
+        this.bobClient = Keys.newClient("bob@example.com");
+        aliceClient
+                .processAutocryptHeader(
+                        "bob@example.com",
+                        Instant.now(),
+                        bobClient.getAutocryptHeader().get().toHeaderValue())
+                .get();
+        this.plaintext = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(plaintext);
+        this.ciphertext = encrypt();
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws ExecutionException, InterruptedException, IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(payloadSize * 2);
+        try (final EncryptionStream encryptionStream =
+                aliceClient.encrypt(RECIPIENTS, outputStream).get()) {
+            encryptionStream.write(plaintext);
+        }
+        return outputStream.toByteArray();
+    }
+
+    @Benchmark
+    public long decrypt() throws ExecutionException, InterruptedException, IOException {
+        try (final DecryptionStream decryptionStream =
+                bobClient.decrypt(new ByteArrayInputStream(ciphertext)).get()) {
+            return ByteStreams.exhaust(decryptionStream);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package rs.ltt.autocrypt.benchmarks;
+
+import java.util.concurrent.ExecutionException;
+import rs.ltt.autocrypt.client.SimpleAutocryptClient;
+import rs.ltt.autocrypt.client.header.AutocryptHeader;
+import rs.ltt.autocrypt.client.storage.InMemoryStorage;
+
+/** Creates the key material used by the benchmarks. Key generation is never part of a benchmark. */
+final class Keys {
+
+    private Keys() {
+        throw new IllegalStateException("Do not instantiate me");
+    }
+
+    static SimpleAutocryptClient newClient(final String userId)
+            throws ExecutionException, InterruptedException {
+        final SimpleAutocryptClient client =
+                SimpleAutocryptClient.builder()
+                        .userId(userId)
+                        .storage(new InMemoryStorage())
+                        .build();
+        client.ensureEverythingIsSetup().get();
+        return client;
+    }
+
+    static AutocryptHeader newAutocryptHeader(final String userId)
+            throws ExecutionException, InterruptedException {
+        return newClient(userId).getAutocryptHeader().get();
+    }
+}
@@ -0,0 +1,103 @@
+package rs.ltt.autocrypt.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.MediaType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.james.mime4j.MimeException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rs.ltt.autocrypt.client.header.AutocryptHeader;
+import rs.ltt.autocrypt.client.header.ImmutableAutocryptHeader;
+import rs.ltt.autocrypt.client.state.GossipUpdate;
+import rs.ltt.autocrypt.jmap.mime.BodyPartTuple;
+import rs.ltt.autocrypt.jmap.mime.MimeTransformer;
+import rs.ltt.jmap.common.entity.Email;
+import rs.ltt.jmap.common.entity.EmailBodyPart;
+
+/**
+ * Creates a MIME message with a text part, an attachment and one gossip header per recipient and
+ * parses such a message back into an {@link Email}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MimeTransformerBenchmark {
+
+    private static final String TEXT = "Hello World! Schöne Grüße\n";
+
+    @Param({"1", "16"})
+    public int recipients;
+
+    @Param({"1024", "262144"})
+    public int attachmentSize;
+
+    private List<AutocryptHeader> gossipHeaders;
+    private byte[] attachment;
+    private byte[] message;
+
+    @Setup
+    public void setup() throws ExecutionException, InterruptedException, IOException {
+        final AutocryptHeader autocryptHeader = Keys.newAutocryptHeader("peer@example.com");
+        final ImmutableList.Builder<AutocryptHeader> gossipHeaders = ImmutableList.builder();
+        for (int i = 0; i < recipients; ++i) {
+            gossipHeaders.add(
+                    ImmutableAutocryptHeader.builder()
+                            .address(String.format("peer%d@example.com", i))
+                            .keyData(autocryptHeader.getKeyData())
+                            .build());
+        }
+        this.gossipHeaders = gossipHeaders.build();
+        this.attachment = new byte[attachmentSize];
+        new Random(attachmentSize).nextBytes(attachment);
+        this.message = transform();
+    }
+
+    @Benchmark
+    public byte[] transform() throws IOException {
+        final List<BodyPartTuple> bodyParts =
+                ImmutableList.of(
+                        BodyPartTuple.of(
+                                EmailBodyPart.builder()
+                                        .mediaType(MediaType.PLAIN_TEXT_UTF_8)
+                                        .build(),
+                                TEXT),
+                        BodyPartTuple.of(
+                                EmailBodyPart.builder()
+                                        .mediaType(MediaType.OCTET_STREAM)
+                                        .name("attachment.bin")
+                                        .build(),
+                                new ByteArrayInputStream(attachment)));
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        MimeTransformer.transform(bodyParts, gossipHeaders, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    @Benchmark
+    public Email parse() throws IOException, MimeException {
+        return MimeTransformer.transform(
+                new ByteArrayInputStream(message),
+                "blob-id",
+                (attachment, inputStream) -> ByteStreams.exhaust(inputStream),
+                GossipUpdate.builder(Instant.now()));
+    }
+}
@@ -0,0 +1,99 @@
+package rs.ltt.autocrypt.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rs.ltt.autocrypt.client.state.IncomingMessage;
+import rs.ltt.autocrypt.client.state.PeerStateManager;
+import rs.ltt.autocrypt.client.state.PreRecommendation;
+import rs.ltt.autocrypt.client.storage.InMemoryStorage;
+
+/**
+ * Processing of incoming Autocrypt headers and preliminary recommendations over {@link
+ * InMemoryStorage}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PeerStateManagerBenchmark {
+
+    private static final int PEERS = 16;
+    private static final int MESSAGES_PER_PEER = 8;
+
+    private final String[] peers = new String[PEERS];
+    private final String[] headerValues = new String[PEERS];
+
+    private List<IncomingMessage> mailbox;
+    private PeerStateManager peerStateManager;
+    private long second = 1_600_000_000;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setupKeys() throws ExecutionException, InterruptedException {
+        final ImmutableList.Builder<IncomingMessage> mailbox = ImmutableList.builder();
+        for (int i = 0; i < PEERS; ++i) {
+            peers[i] = String.format("peer%d@example.com", i);
+            headerValues[i] = Keys.newAutocryptHeader(peers[i]).toHeaderValue();
+            for (int j = 0; j < MESSAGES_PER_PEER; ++j) {
+                mailbox.add(
+                        IncomingMessage.of(
+                                peers[i],
+                                Instant.ofEpochSecond(second + j),
+                                Collections.singleton(headerValues[i])));
+            }
+        }
+        this.mailbox = mailbox.build();
+    }
+
+    @Setup(Level.Iteration)
+    public void setupStorage() {
+        this.peerStateManager = new PeerStateManager(new InMemoryStorage());
+        for (int i = 0; i < PEERS; ++i) {
+            peerStateManager.processAutocryptHeaders(
+                    peers[i],
+                    Instant.ofEpochSecond(second),
+                    Collections.singleton(headerValues[i]));
+        }
+    }
+
+    @Benchmark
+    public void processAutocryptHeaders() {
+        final int index = next++ % PEERS;
+        peerStateManager.processAutocryptHeaders(
+                peers[index],
+                Instant.ofEpochSecond(++second),
+                Collections.singleton(headerValues[index]));
+    }
+
+    @Benchmark
+    public void processMailbox() throws ExecutionException, InterruptedException {
+        final ListeningExecutorService executor = MoreExecutors.newDirectExecutorService();
+        new PeerStateManager(new InMemoryStorage())
+                .processAutocryptHeaders(mailbox, executor, executor)
+                .get();
+    }
+
+    @Benchmark
+    public PreRecommendation getPreliminaryRecommendation() {
+        return peerStateManager.getPreliminaryRecommendation(peers[next++ % PEERS]);
+    }
+}
@@ -5,11 +5,14 @@ import static java.util.Arrays.asList;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
 import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -23,61 +26,148 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import org.bouncycastle.bcpg.ArmoredInputStream;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.bouncycastle.openpgp.PGPSecretKeyRing;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.pgpainless.PGPainless;
-import org.pgpainless.algorithm.DocumentSignatureType;
 import org.pgpainless.decryption_verification.ConsumerOptions;
 import org.pgpainless.decryption_verification.DecryptionStream;
 import org.pgpainless.encryption_signing.EncryptionOptions;
 import org.pgpainless.encryption_signing.EncryptionStream;
 import org.pgpainless.encryption_signing.ProducerOptions;
 import org.pgpainless.encryption_signing.SigningOptions;
-import org.pgpainless.key.protection.SecretKeyRingProtector;
 import org.pgpainless.util.ArmorUtils;
 import org.pgpainless.util.ArmoredInputStreamFactory;
 import org.pgpainless.util.MultiMap;
 import org.pgpainless.util.Passphrase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import rs.ltt.autocrypt.client.header.AutocryptHeader;
 import rs.ltt.autocrypt.client.header.EncryptionPreference;
 import rs.ltt.autocrypt.client.header.Headers;
 import rs.ltt.autocrypt.client.header.ImmutableAutocryptHeader;
 import rs.ltt.autocrypt.client.header.PassphraseHint;
 import rs.ltt.autocrypt.client.state.GossipUpdate;
+import rs.ltt.autocrypt.client.state.IncomingMessage;
 import rs.ltt.autocrypt.client.state.PeerStateManager;
 import rs.ltt.autocrypt.client.state.PreRecommendation;
 import rs.ltt.autocrypt.client.storage.AccountState;
 import rs.ltt.autocrypt.client.storage.ImmutableAccountState;
 import rs.ltt.autocrypt.client.storage.Storage;
+import rs.ltt.autocrypt.client.util.InstrumentedExecutorService;
 
 @SuppressWarnings({"Guava", "UnstableApiUsage"})
 public abstract class AbstractAutocryptClient {
 
-    public static final ListeningExecutorService CRYPTO_EXECUTOR =
-            MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(2));
+    private static final Logger LOGGER = LoggerFactory.getLogger(AbstractAutocryptClient.class);
+
+    private static final InstrumentedExecutorService INSTRUMENTED_CRYPTO_EXECUTOR =
+            InstrumentedExecutorService.newFixedThreadPool(
+                    Math.max(2, Runtime.getRuntime().availableProcessors()), "autocrypt-crypto-%d");
+
+    /**
+     * The crypto executor shared by all clients that have not been configured with one of their
+     * own. Its size is derived from the number of available processors. See {@link
+     * #getInstrumentedCryptoExecutor()} for its queue length and task counts.
+     */
+    public static final ListeningExecutorService CRYPTO_EXECUTOR = INSTRUMENTED_CRYPTO_EXECUTOR;
+
+    /**
+     * Account states that are currently being loaded or created. Concurrent requests for the same
+     * user (and storage) share the same future; different users are initialized in parallel.
+     */
+    private static final ConcurrentMap<AccountKey, ListenableFuture<AccountState>>
+            PENDING_ACCOUNT_STATES = new ConcurrentHashMap<>();
 
     private final String userId;
     private final Storage storage;
     private final PeerStateManager peerStateManager;
     private final ListeningExecutorService ioExecutorService;
+    private final InstrumentedExecutorService cryptoExecutorService;
     private final DefaultSettings defaultSettings;
 
-    private AccountState accountState;
+    private volatile DecodedAccountState decodedAccountState;
+
+    protected AbstractAutocryptClient(
+            final String userId,
+            final Storage storage,
+            final ListeningExecutorService ioExecutorService,
+            final DefaultSettings defaultSettings) {
+        this(userId, storage, ioExecutorService, CRYPTO_EXECUTOR, defaultSettings);
+    }
 
     protected AbstractAutocryptClient(
             final String userId,
             final Storage storage,
             final ListeningExecutorService ioExecutorService,
+            final ListeningExecutorService cryptoExecutorService,
             final DefaultSettings defaultSettings) {
+        this(userId, storage, ioExecutorService, cryptoExecutorService, defaultSettings, false);
+    }
+
+    /**
+     * @param usePeerStateFilter Rule out peers without key material from memory. Only safe if every
+     *     write to the storage goes through clients of this process; see {@link
+     *     PeerStateManager#enablePeerStateFilter}
+     */
+    protected AbstractAutocryptClient(
+            final String userId,
+            final Storage storage,
+            final ListeningExecutorService ioExecutorService,
+            final ListeningExecutorService cryptoExecutorService,
+            final DefaultSettings defaultSettings,
+            final boolean usePeerStateFilter) {
         this.storage = storage;
-        this.peerStateManager = new PeerStateManager(storage);
+        this.peerStateManager = PeerStateManager.shared(storage);
         this.userId = userId;
         this.ioExecutorService = ioExecutorService;
+        this.cryptoExecutorService = InstrumentedExecutorService.of(cryptoExecutorService);
         this.defaultSettings = defaultSettings;
+        if (usePeerStateFilter) {
+            peerStateManager.enablePeerStateFilter(ioExecutorService);
+        }
+        final SecretKeyPool secretKeyPool = defaultSettings.getSecretKeyPool();
+        if (secretKeyPool != null) {
+            // the storage is only consulted on the executor of the pool
+            secretKeyPool.prepare(userId, this::isAccountMissing);
+        }
+    }
+
+    /**
+     * Checked by the {@link SecretKeyPool} before it generates a key for this user ahead of need.
+     */
+    private boolean isAccountMissing() {
+        if (this.decodedAccountState != null) {
+            return false;
+        }
+        try {
+            return storage.getAccountState(userId) == null;
+        } catch (final RuntimeException e) {
+            LOGGER.warn("Unable to prepare secret key for {}", userId, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return The shared {@link #CRYPTO_EXECUTOR}, which reports how many tasks are queued, running
+     *     and completed
+     */
+    public static InstrumentedExecutorService getInstrumentedCryptoExecutor() {
+        return INSTRUMENTED_CRYPTO_EXECUTOR;
+    }
+
+    /**
+     * @return The executor used for CPU heavy work like parsing keys, encrypting and decrypting.
+     *     Executors passed in by the caller are wrapped so that queue length and task counts are
+     *     available for them, too. Those counts only cover the tasks of this client.
+     */
+    public InstrumentedExecutorService getCryptoExecutorService() {
+        return cryptoExecutorService;
     }
 
     public ListenableFuture<Void> processAutocryptHeader(
@@ -89,11 +179,35 @@ public abstract class AbstractAutocryptClient {
             final String from,
             final Instant effectiveDate,
             final Collection<String> autocryptHeaders) {
+        return processAutocryptHeaders(from, effectiveDate, autocryptHeaders, ioExecutorService);
+    }
+
+    /**
+     * Same as {@link #processAutocryptHeaders(String, Instant, Collection)} but runs on the given
+     * executor instead of the IO executor of this client. This allows background processing, for
+     * example of newly cached messages, to be bounded separately from interactive work.
+     */
+    public ListenableFuture<Void> processAutocryptHeaders(
+            final String from,
+            final Instant effectiveDate,
+            final Collection<String> autocryptHeaders,
+            final Executor executor) {
         return Futures.submit(
                 () ->
                         peerStateManager.processAutocryptHeaders(
                                 from, effectiveDate, autocryptHeaders),
-                ioExecutorService);
+                executor);
+    }
+
+    /**
+     * Processes the Autocrypt headers of many messages at once. Use this instead of {@link
+     * #processAutocryptHeaders(String, Instant, Collection)} when ingesting a large number of
+     * messages, for example when first attaching to an existing mailbox.
+     */
+    public ListenableFuture<Void> processIncomingMessages(
+            final Collection<IncomingMessage> messages) {
+        return peerStateManager.processAutocryptHeaders(
+                messages, cryptoExecutorService, ioExecutorService);
     }
 
     public ListenableFuture<Void> processGossipUpdates(
@@ -109,45 +223,103 @@ public abstract class AbstractAutocryptClient {
     }
 
     protected ListenableFuture<AccountState> getAccountStateFuture() {
-        if (accountState != null) {
-            return Futures.immediateFuture(accountState);
+        final DecodedAccountState decodedAccountState = this.decodedAccountState;
+        if (decodedAccountState != null) {
+            return Futures.immediateFuture(decodedAccountState.getAccountState());
+        }
+        final AccountKey accountKey = new AccountKey(storage, userId);
+        final SettableFuture<AccountState> future = SettableFuture.create();
+        final ListenableFuture<AccountState> pending =
+                PENDING_ACCOUNT_STATES.putIfAbsent(accountKey, future);
+        if (pending != null) {
+            return Futures.nonCancellationPropagating(pending);
+        }
+        future.addListener(
+                () -> PENDING_ACCOUNT_STATES.remove(accountKey, future),
+                MoreExecutors.directExecutor());
+        future.setFuture(
+                Futures.transformAsync(
+                        Futures.submit(this::loadAccountState, ioExecutorService),
+                        this::createAccountStateIfMissing,
+                        MoreExecutors.directExecutor()));
+        return Futures.nonCancellationPropagating(future);
+    }
+
+    /**
+     * Returns the decoded keys for the given account state. If the account state is the one
+     * currently held by this client the previously decoded keys are reused.
+     */
+    private DecodedAccountState decode(final AccountState accountState) {
+        final DecodedAccountState current = this.decodedAccountState;
+        if (current != null && current.getAccountState() == accountState) {
+            return current;
         }
-        return Futures.submit(this::getAccountState, ioExecutorService);
+        return DecodedAccountState.of(accountState);
     }
 
     protected AutocryptHeader getAutocryptHeader(final AccountState accountState) {
-        final PGPSecretKeyRing secretKeyRing = PGPKeyRings.readSecretKeyRing(accountState);
-        return AutocryptHeader.of(secretKeyRing, accountState.getEncryptionPreference());
+        final PGPPublicKeyRing certificate = decode(accountState).getCertificate();
+        return AutocryptHeader.of(certificate, accountState.getEncryptionPreference());
+    }
+
+    /**
+     * Loads the account state from storage. Callers are expected to go through {@link
+     * #getAccountStateFuture()} which ensures that this, and the creation of a fresh account state
+     * if none exists, runs at most once at a time for any given combination of storage and user id.
+     *
+     * @return The stored account state or null if none exists
+     */
+    private AccountState loadAccountState() {
+        final DecodedAccountState decodedAccountState = this.decodedAccountState;
+        if (decodedAccountState != null) {
+            return decodedAccountState.getAccountState();
+        }
+        final AccountState accountState = storage.getAccountState(this.userId);
+        if (accountState != null) {
+            this.decodedAccountState = DecodedAccountState.of(accountState);
+        }
+        return accountState;
     }
 
-    private AccountState getAccountState()
-            throws PGPException, InvalidAlgorithmParameterException, NoSuchAlgorithmException {
-        synchronized (AbstractAutocryptClient.class) {
-            if (this.accountState != null) {
-                return this.accountState;
-            }
-            final AccountState accountState = storage.getAccountState(this.userId);
-            if (accountState != null) {
-                this.accountState = accountState;
-                return accountState;
-            }
-            final PGPSecretKeyRing secretKeyRing =
-                    PGPainless.generateKeyRing().simpleEcKeyRing(String.format("<%s>", userId));
-            final byte[] keyData = PGPKeyRings.keyData(secretKeyRing);
-            final AccountState freshAccountState =
-                    ImmutableAccountState.builder()
-                            .isEnabled(defaultSettings.isEnabled())
-                            .encryptionPreference(defaultSettings.getEncryptionPreference())
-                            .secretKey(keyData)
-                            .build();
-            storeAccountState(freshAccountState);
-            return freshAccountState;
+    /**
+     * Waits for a pre-generated key from the {@link SecretKeyPool} without occupying a thread and
+     * creates the account state on the IO executor once it is ready.
+     */
+    private ListenableFuture<AccountState> createAccountStateIfMissing(
+            final AccountState accountState) {
+        if (accountState != null) {
+            return Futures.immediateFuture(accountState);
         }
+        final SecretKeyPool secretKeyPool = defaultSettings.getSecretKeyPool();
+        final ListenableFuture<PGPSecretKeyRing> pooledSecretKeyRingFuture =
+                secretKeyPool == null ? Futures.immediateFuture(null) : secretKeyPool.take(userId);
+        return Futures.transformAsync(
+                pooledSecretKeyRingFuture,
+                pooledSecretKeyRing ->
+                        Futures.immediateFuture(createAccountState(pooledSecretKeyRing)),
+                ioExecutorService);
+    }
+
+    private AccountState createAccountState(final PGPSecretKeyRing pooledSecretKeyRing)
+            throws PGPException, InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+        final PGPSecretKeyRing secretKeyRing =
+                pooledSecretKeyRing != null
+                        ? pooledSecretKeyRing
+                        : PGPKeyRings.generateSecretKeyRing(userId);
+        final byte[] keyData = PGPKeyRings.keyData(secretKeyRing);
+        final AccountState freshAccountState =
+                ImmutableAccountState.builder()
+                        .isEnabled(defaultSettings.isEnabled())
+                        .encryptionPreference(defaultSettings.getEncryptionPreference())
+                        .secretKey(keyData)
+                        .build();
+        storeAccountState(freshAccountState);
+        return freshAccountState;
     }
 
     private void storeAccountState(final AccountState accountState) {
         this.storage.setAccountState(userId, accountState);
-        this.accountState = accountState;
+        this.decodedAccountState = DecodedAccountState.of(accountState);
     }
 
     public ListenableFuture<Void> ensureEverythingIsSetup() {
@@ -175,8 +347,24 @@ public abstract class AbstractAutocryptClient {
 
     protected AutocryptHeader getAutocryptHeader(
             final String from, final AccountState accountState) {
-        final PGPSecretKeyRing secretKeyRing = PGPKeyRings.readSecretKeyRing(accountState);
-        return AutocryptHeader.of(from, secretKeyRing, accountState.getEncryptionPreference());
+        final PGPPublicKeyRing certificate = decode(accountState).getCertificate();
+        return AutocryptHeader.of(from, certificate, accountState.getEncryptionPreference());
+    }
+
+    /**
+     * Same as {@link #getAutocryptHeader(String, AccountState)} but returns the formatted header
+     * value. Header values are memoized for as long as the account state doesn’t change.
+     */
+    protected String getAutocryptHeaderValue(final String from, final AccountState accountState) {
+        return decode(accountState).getAutocryptHeaderValue(from);
+    }
+
+    /**
+     * Same as {@link #getAutocryptHeader(AccountState)} but returns the formatted header value.
+     * Header values are memoized for as long as the account state doesn’t change.
+     */
+    protected String getAutocryptHeaderValue(final AccountState accountState) {
+        return decode(accountState).getAutocryptHeaderValue();
     }
 
     public ListenableFuture<DecryptionStream> decrypt(final InputStream inputStream) {
@@ -188,10 +376,8 @@ public abstract class AbstractAutocryptClient {
 
     private ListenableFuture<DecryptionStream> decrypt(
             final InputStream inputStream, final AccountState accountState) {
-        final PGPSecretKeyRing secretKeyRing = PGPKeyRings.readSecretKeyRing(accountState);
         // TODO do we want to add sender verification?
-        final ConsumerOptions consumerOptions =
-                new ConsumerOptions().addDecryptionKey(secretKeyRing);
+        final ConsumerOptions consumerOptions = decode(accountState).newConsumerOptions();
         try {
             return Futures.immediateFuture(
                     PGPainless.decryptAndOrVerify()
@@ -217,12 +403,15 @@ public abstract class AbstractAutocryptClient {
         return Futures.transformAsync(
                 getRecommendations(recipients, false, accountState),
                 recommendations -> {
+                    // parses the keys first so that unparseable ones count as DISABLE
+                    final List<PGPPublicKeyRing> publicKeys =
+                            Lists.newArrayList(
+                                    Collections2.transform(
+                                            recommendations, Recommendation::getPublicKey));
                     if (Recommendation.combine(recommendations) == Decision.DISABLE) {
                         throw new IllegalArgumentException(
                                 "Not all recipients have valid public keys");
                     }
-                    final Collection<PGPPublicKeyRing> publicKeys =
-                            Collections2.transform(recommendations, Recommendation::getPublicKey);
                     return createEncryptionStream(outputStream, publicKeys, accountState);
                 },
                 MoreExecutors.directExecutor());
@@ -232,29 +421,37 @@ public abstract class AbstractAutocryptClient {
             final Collection<String> addresses,
             final boolean isReplyToEncrypted,
             final AccountState accountState) {
-        return Futures.allAsList(
-                Collections2.transform(
-                        addresses,
-                        address -> getRecommendation(address, isReplyToEncrypted, accountState)));
+        if (!accountState.isEnabled()) {
+            return Futures.immediateFuture(
+                    Collections.nCopies(addresses.size(), Recommendation.DISABLE));
+        }
+        return Futures.transform(
+                peerStateManager.getPreliminaryRecommendations(
+                        addresses, cryptoExecutorService, ioExecutorService),
+                preRecommendations ->
+                        ImmutableList.copyOf(
+                                Lists.transform(
+                                        Objects.requireNonNull(preRecommendations),
+                                        preRecommendation ->
+                                                getRecommendation(
+                                                        accountState,
+                                                        isReplyToEncrypted,
+                                                        preRecommendation))),
+                MoreExecutors.directExecutor());
     }
 
     private ListenableFuture<EncryptionStream> createEncryptionStream(
             final OutputStream outputStream,
             final Collection<PGPPublicKeyRing> recipients,
             final AccountState accountState) {
-        final PGPSecretKeyRing secretKeyRing = PGPKeyRings.readSecretKeyRing(accountState);
+        final DecodedAccountState decodedAccountState = decode(accountState);
         final EncryptionOptions encryptionOptions =
                 new EncryptionOptions()
                         .addRecipients(recipients)
-                        .addRecipient(PGPainless.extractCertificate(secretKeyRing));
+                        .addRecipient(decodedAccountState.getCertificate());
         final SigningOptions signingOptions;
         try {
-            signingOptions =
-                    new SigningOptions()
-                            .addInlineSignature(
-                                    SecretKeyRingProtector.unprotectedKeys(),
-                                    secretKeyRing,
-                                    DocumentSignatureType.CANONICAL_TEXT_DOCUMENT);
+            signingOptions = decodedAccountState.newSigningOptions();
         } catch (final PGPException e) {
             return Futures.immediateFailedFuture(e);
         }
@@ -289,6 +486,9 @@ public abstract class AbstractAutocryptClient {
     }
 
     private ListenableFuture<PreRecommendation> getPreliminaryRecommendation(final String address) {
+        if (!peerStateManager.mightHaveKeyMaterial(address)) {
+            return Futures.immediateFuture(PreRecommendation.DISABLE);
+        }
         return Futures.submit(
                 () -> peerStateManager.getPreliminaryRecommendation(address), ioExecutorService);
     }
@@ -362,7 +562,7 @@ public abstract class AbstractAutocryptClient {
                 getPreliminaryRecommendation(peer),
                 pr -> {
                     final PGPPublicKeyRing publicKey = pr == null ? null : pr.getPublicKey();
-                    if (pr == null) {
+                    if (publicKey == null) {
                         throw new IllegalArgumentException(
                                 String.format("%s does not have a valid public key", peer));
                     }
@@ -387,11 +587,24 @@ public abstract class AbstractAutocryptClient {
                 MoreExecutors.directExecutor());
     }
 
+    /**
+     * Starts tracking the recipients of a message that is being composed. Use this instead of
+     * repeatedly calling {@link #getRecommendations(Collection, boolean)} when the recipients are
+     * edited one at a time.
+     *
+     * @param listener Notified whenever the combined decision changes. May be null.
+     */
+    public ComposeSession newComposeSession(
+            final boolean isReplyToEncrypted, final ComposeSession.Listener listener) {
+        return new ComposeSession(
+                address -> getRecommendation(address, isReplyToEncrypted), listener);
+    }
+
     public ListenableFuture<String> exportSecretKey(final String passphrase) {
         return Futures.transformAsync(
                 getAccountStateFuture(),
                 accountState -> exportSecretKey(accountState, Strings.nullToEmpty(passphrase)),
-                CRYPTO_EXECUTOR);
+                cryptoExecutorService);
     }
 
     private ListenableFuture<String> exportSecretKey(
@@ -460,8 +673,8 @@ public abstract class AbstractAutocryptClient {
                                 PGPainless.decryptAndOrVerify()
                                         .onInputStream(encryptedStream)
                                         .withOptions(consumerOptions),
-                        CRYPTO_EXECUTOR);
-        return Futures.transformAsync(streamFuture, this::importSecretKey, CRYPTO_EXECUTOR);
+                        cryptoExecutorService);
+        return Futures.transformAsync(streamFuture, this::importSecretKey, cryptoExecutorService);
     }
 
     @NonNull
@@ -512,4 +725,27 @@ public abstract class AbstractAutocryptClient {
                 },
                 ioExecutorService);
     }
+
+    private static final class AccountKey {
+        private final Storage storage;
+        private final String userId;
+
+        private AccountKey(final Storage storage, final String userId) {
+            this.storage = storage;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final AccountKey accountKey = (AccountKey) o;
+            return storage == accountKey.storage && userId.equals(accountKey.userId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(storage) + userId.hashCode();
+        }
+    }
 }
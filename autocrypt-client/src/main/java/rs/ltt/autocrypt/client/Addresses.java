@@ -1,22 +1,106 @@
 package rs.ltt.autocrypt.client;
 
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import java.net.IDN;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
 
+/**
+ * Normalizes email addresses by lower casing them and converting internationalized domain names to
+ * their ASCII (punycode) representation.
+ *
+ * <p>Most addresses are already normalized. Those are detected in a single pass over the input and
+ * returned as is. Domains that are plain ASCII skip the IDN conversion. Results for all other
+ * addresses are kept in a small cache.
+ */
 public final class Addresses {
 
+    private static final int MAX_LABEL_LENGTH = 63;
+
+    private static final int MAXIMUM_CACHE_SIZE = 1024;
+
+    private static final Cache<String, String> CACHE =
+            CacheBuilder.newBuilder().maximumSize(MAXIMUM_CACHE_SIZE).build();
+
     private Addresses() {
         throw new IllegalStateException("Do not instantiate me");
     }
 
     public static String normalize(final String input) {
+        if (isNormalized(input)) {
+            return input;
+        }
+        try {
+            return CACHE.get(input, () -> normalizeUncached(input));
+        } catch (final ExecutionException | UncheckedExecutionException e) {
+            // IDN rejects some domains with an IllegalArgumentException
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static String normalizeUncached(final String input) {
         final String normalized = input.trim().toLowerCase(Locale.ROOT);
         final int atPosition = normalized.lastIndexOf('@');
         if (atPosition == -1) {
             return normalized;
         }
-        final String mailbox = normalized.substring(0, atPosition);
-        final String domain = IDN.toASCII(normalized.substring(atPosition + 1));
-        return String.format("%s@%s", mailbox, domain);
+        final String domain = normalized.substring(atPosition + 1);
+        if (isAsciiDomain(domain, 0, domain.length())) {
+            return normalized;
+        }
+        return normalized.substring(0, atPosition + 1) + IDN.toASCII(domain);
+    }
+
+    /**
+     * @return true if the input has no surrounding white space, contains no upper case or non ASCII
+     *     characters and has a domain that IDN conversion would leave untouched
+     */
+    static boolean isNormalized(final String input) {
+        final int length = input.length();
+        if (length == 0) {
+            return true;
+        }
+        if (input.charAt(0) <= ' ' || input.charAt(length - 1) <= ' ') {
+            return false;
+        }
+        int atPosition = -1;
+        for (int i = 0; i < length; ++i) {
+            final char c = input.charAt(i);
+            if (c >= 0x80 || (c >= 'A' && c <= 'Z')) {
+                return false;
+            }
+            if (c == '@') {
+                atPosition = i;
+            }
+        }
+        return atPosition == -1 || isAsciiDomain(input, atPosition + 1, length);
+    }
+
+    /**
+     * Checks if {@link IDN#toASCII(String)} would return the (already lower case) domain unchanged.
+     * That is the case for ASCII domains whose labels are neither empty nor longer than 63
+     * characters. Everything else is left to {@link IDN} which will convert or reject it.
+     */
+    private static boolean isAsciiDomain(final String domain, final int start, final int end) {
+        int labelLength = 0;
+        for (int i = start; i < end; ++i) {
+            final char c = domain.charAt(i);
+            if (c >= 0x80) {
+                return false;
+            }
+            if (c == '.') {
+                if (labelLength == 0) {
+                    return false;
+                }
+                labelLength = 0;
+            } else if (++labelLength > MAX_LABEL_LENGTH) {
+                return false;
+            }
+        }
+        return true;
     }
 }
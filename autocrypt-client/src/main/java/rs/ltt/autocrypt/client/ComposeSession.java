@@ -0,0 +1,187 @@
+package rs.ltt.autocrypt.client;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the recommendations for the recipients of a message while it is being composed.
+ * Recipients are added and removed one at a time and only the recommendation for the changed
+ * recipient is resolved. The combined {@link Decision} is maintained with one counter per decision
+ * and is therefore updated in constant time per change.
+ *
+ * <p>Recommendations are resolved asynchronously. Recipients whose recommendation is still pending
+ * do not count towards the combined decision; see {@link #isResolved()}. Addresses are normalized
+ * and the same address appearing more than once (for example in To and Cc) is counted once.
+ */
+public class ComposeSession {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ComposeSession.class);
+
+    private final Function<String, ListenableFuture<Recommendation>> recommendationResolver;
+    private final Listener listener;
+    private final Map<String, Recipient> recipients = new HashMap<>();
+    private final int[] decisionCounts = new int[Decision.values().length];
+    private int resolved = 0;
+    private Decision decision = Decision.DISABLE;
+
+    ComposeSession(
+            final Function<String, ListenableFuture<Recommendation>> recommendationResolver,
+            final Listener listener) {
+        this.recommendationResolver = Preconditions.checkNotNull(recommendationResolver);
+        this.listener = listener;
+    }
+
+    public synchronized void addRecipient(final String address) {
+        final String normalized = Addresses.normalize(address);
+        final Recipient existing = recipients.get(normalized);
+        if (existing != null) {
+            existing.references++;
+            return;
+        }
+        final Recipient recipient = new Recipient();
+        recipients.put(normalized, recipient);
+        recipient.future = recommendationResolver.apply(normalized);
+        Futures.addCallback(
+                recipient.future,
+                new FutureCallback<Recommendation>() {
+                    @Override
+                    public void onSuccess(final Recommendation recommendation) {
+                        onResolved(normalized, recipient, recommendation);
+                    }
+
+                    @Override
+                    public void onFailure(final Throwable throwable) {
+                        if (recipient.future.isCancelled()) {
+                            return;
+                        }
+                        LOGGER.warn("Unable to get recommendation for {}", normalized, throwable);
+                        onResolved(normalized, recipient, Recommendation.DISABLE);
+                    }
+                },
+                MoreExecutors.directExecutor());
+    }
+
+    public synchronized void removeRecipient(final String address) {
+        final String normalized = Addresses.normalize(address);
+        final Recipient recipient = recipients.get(normalized);
+        if (recipient == null) {
+            return;
+        }
+        if (--recipient.references > 0) {
+            return;
+        }
+        recipients.remove(normalized);
+        if (recipient.recommendation == null) {
+            recipient.future.cancel(false);
+            return;
+        }
+        decisionCounts[recipient.decision.ordinal()]--;
+        resolved--;
+        updateDecision();
+    }
+
+    /**
+     * Replaces the current recipients. Only the difference to the current set is resolved.
+     * Addresses that appear more than once are counted once.
+     */
+    public synchronized void setRecipients(final Collection<String> addresses) {
+        final Set<String> normalized = new HashSet<>();
+        for (final String address : addresses) {
+            normalized.add(Addresses.normalize(address));
+        }
+        for (final String address : new HashSet<>(recipients.keySet())) {
+            if (!normalized.contains(address)) {
+                recipients.get(address).references = 1;
+                removeRecipient(address);
+            }
+        }
+        for (final String address : normalized) {
+            final Recipient recipient = recipients.get(address);
+            if (recipient == null) {
+                addRecipient(address);
+            } else {
+                recipient.references = 1;
+            }
+        }
+    }
+
+    /**
+     * @return The combined decision of all recipients whose recommendation has been resolved
+     */
+    public synchronized Decision getDecision() {
+        return decision;
+    }
+
+    /**
+     * @return true if the recommendations of all recipients have been resolved
+     */
+    public synchronized boolean isResolved() {
+        return resolved == recipients.size();
+    }
+
+    public synchronized int size() {
+        return recipients.size();
+    }
+
+    private synchronized void onResolved(
+            final String address, final Recipient recipient, final Recommendation recommendation) {
+        if (recipients.get(address) != recipient) {
+            // the recipient has been removed in the meantime
+            return;
+        }
+        recipient.recommendation = recommendation;
+        // the decision might still change once the public key is parsed; count the one seen here
+        recipient.decision = recommendation.getDecision();
+        decisionCounts[recipient.decision.ordinal()]++;
+        resolved++;
+        updateDecision();
+    }
+
+    /** Same rules as {@link Decision#combine(Collection)} but based on the counters. */
+    private void updateDecision() {
+        final Decision combined;
+        if (resolved == 0 || decisionCounts[Decision.DISABLE.ordinal()] > 0) {
+            combined = Decision.DISABLE;
+        } else if (decisionCounts[Decision.ENCRYPT.ordinal()] == resolved) {
+            combined = Decision.ENCRYPT;
+        } else if (decisionCounts[Decision.DISCOURAGE.ordinal()] > 0) {
+            combined = Decision.DISCOURAGE;
+        } else {
+            combined = Decision.AVAILABLE;
+        }
+        if (combined == this.decision) {
+            return;
+        }
+        this.decision = combined;
+        if (listener != null) {
+            listener.onDecisionChanged(combined);
+        }
+    }
+
+    /**
+     * Is called whenever the combined decision changes. The listener is invoked synchronously while
+     * the session is locked, from whatever thread caused the change, and must therefore return
+     * quickly.
+     */
+    public interface Listener {
+        void onDecisionChanged(final Decision decision);
+    }
+
+    private static class Recipient {
+        private int references = 1;
+        private ListenableFuture<Recommendation> future;
+        private Recommendation recommendation;
+        private Decision decision;
+    }
+}
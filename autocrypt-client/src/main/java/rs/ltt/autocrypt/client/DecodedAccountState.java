@@ -0,0 +1,114 @@
+package rs.ltt.autocrypt.client;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.pgpainless.PGPainless;
+import org.pgpainless.algorithm.DocumentSignatureType;
+import org.pgpainless.decryption_verification.ConsumerOptions;
+import org.pgpainless.encryption_signing.SigningOptions;
+import org.pgpainless.key.protection.SecretKeyRingProtector;
+import rs.ltt.autocrypt.client.header.AutocryptHeader;
+import rs.ltt.autocrypt.client.storage.AccountState;
+
+/**
+ * Keeps an {@link AccountState} together with its decoded secret key ring and the certificate
+ * derived from it. Both are decoded lazily and at most once. Instances are immutable; a changed
+ * account state always results in a new instance so that the account state and the decoded keys can
+ * be swapped atomically.
+ *
+ * <p>Autocrypt header values are memoized per normalized sender address. They only depend on the
+ * account state and the address and are identical for every message sent from the same identity.
+ * The least recently used values are evicted once more than {@link #MAX_MEMOIZED_HEADER_VALUES}
+ * identities send from the same account.
+ *
+ * <p>PGPainless’ {@link ConsumerOptions} and {@link SigningOptions} are stateful and can not be
+ * shared between streams. They are therefore created fresh from the decoded key ring each time.
+ */
+@SuppressWarnings("Guava")
+final class DecodedAccountState {
+
+    private static final SecretKeyRingProtector PROTECTOR =
+            SecretKeyRingProtector.unprotectedKeys();
+
+    private static final int MAX_MEMOIZED_HEADER_VALUES = 16;
+
+    private final AccountState accountState;
+    private final Supplier<PGPSecretKeyRing> secretKeyRing;
+    private final Supplier<PGPPublicKeyRing> certificate;
+    private final Supplier<String> headerValue;
+    private final Cache<String, String> headerValues =
+            CacheBuilder.newBuilder().maximumSize(MAX_MEMOIZED_HEADER_VALUES).build();
+
+    private DecodedAccountState(final AccountState accountState) {
+        this.accountState = Preconditions.checkNotNull(accountState);
+        this.secretKeyRing = Suppliers.memoize(() -> PGPKeyRings.readSecretKeyRing(accountState));
+        this.certificate =
+                Suppliers.memoize(() -> PGPainless.extractCertificate(getSecretKeyRing()));
+        this.headerValue =
+                Suppliers.memoize(
+                        () ->
+                                AutocryptHeader.of(
+                                                getCertificate(),
+                                                accountState.getEncryptionPreference())
+                                        .toHeaderValue());
+    }
+
+    static DecodedAccountState of(final AccountState accountState) {
+        return new DecodedAccountState(accountState);
+    }
+
+    AccountState getAccountState() {
+        return accountState;
+    }
+
+    PGPSecretKeyRing getSecretKeyRing() {
+        return secretKeyRing.get();
+    }
+
+    PGPPublicKeyRing getCertificate() {
+        return certificate.get();
+    }
+
+    /**
+     * @return The Autocrypt header value for the address found in the primary user id of the key
+     */
+    String getAutocryptHeaderValue() {
+        return headerValue.get();
+    }
+
+    /**
+     * @param from The address as it appears in the From header of the outgoing message
+     * @return The Autocrypt header value for the normalized sender address
+     */
+    String getAutocryptHeaderValue(final String from) {
+        final String address = Addresses.normalize(from);
+        final String headerValue = headerValues.getIfPresent(address);
+        if (headerValue != null) {
+            return headerValue;
+        }
+        final String freshHeaderValue =
+                AutocryptHeader.of(
+                                address, getCertificate(), accountState.getEncryptionPreference())
+                        .toHeaderValue();
+        headerValues.put(address, freshHeaderValue);
+        return freshHeaderValue;
+    }
+
+    ConsumerOptions newConsumerOptions() {
+        return new ConsumerOptions().addDecryptionKey(getSecretKeyRing());
+    }
+
+    SigningOptions newSigningOptions() throws PGPException {
+        return new SigningOptions()
+                .addInlineSignature(
+                        PROTECTOR,
+                        getSecretKeyRing(),
+                        DocumentSignatureType.CANONICAL_TEXT_DOCUMENT);
+    }
+}
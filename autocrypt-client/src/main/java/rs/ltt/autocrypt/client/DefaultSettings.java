@@ -9,10 +9,23 @@ public class DefaultSettings {
 
     private final boolean enabled;
     private final EncryptionPreference encryptionPreference;
+    private final SecretKeyPool secretKeyPool;
 
     public DefaultSettings(boolean enabled, EncryptionPreference encryptionPreference) {
+        this(enabled, encryptionPreference, null);
+    }
+
+    /**
+     * @param secretKeyPool Pre-generates keys for accounts that have not been set up yet. May be
+     *     null in which case keys are generated when they are first needed.
+     */
+    public DefaultSettings(
+            boolean enabled,
+            EncryptionPreference encryptionPreference,
+            SecretKeyPool secretKeyPool) {
         this.enabled = enabled;
         this.encryptionPreference = encryptionPreference;
+        this.secretKeyPool = secretKeyPool;
     }
 
     public boolean isEnabled() {
@@ -22,4 +35,8 @@ public class DefaultSettings {
     public EncryptionPreference getEncryptionPreference() {
         return encryptionPreference;
     }
+
+    public SecretKeyPool getSecretKeyPool() {
+        return secretKeyPool;
+    }
 }
@@ -1,15 +1,22 @@
 package rs.ltt.autocrypt.client;
 
 import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPKeyRing;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.bouncycastle.openpgp.PGPSecretKeyRing;
 import org.pgpainless.PGPainless;
 import org.pgpainless.algorithm.EncryptionPurpose;
+import org.pgpainless.algorithm.KeyFlag;
 import org.pgpainless.key.info.KeyRingInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import rs.ltt.autocrypt.client.storage.AccountState;
+import rs.ltt.autocrypt.client.storage.ImmutableKeyMetadata;
+import rs.ltt.autocrypt.client.storage.KeyMetadata;
 
 public final class PGPKeyRings {
 
@@ -19,6 +26,11 @@ public final class PGPKeyRings {
         throw new IllegalStateException("Do not instantiate me");
     }
 
+    public static PGPSecretKeyRing generateSecretKeyRing(final String userId)
+            throws PGPException, InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+        return PGPainless.generateKeyRing().simpleEcKeyRing(String.format("<%s>", userId));
+    }
+
     public static PGPPublicKeyRing readPublicKeyRing(final byte[] keyData) {
         if (keyData == null || keyData.length == 0) {
             return null;
@@ -55,6 +67,34 @@ public final class PGPKeyRings {
         }
     }
 
+    /**
+     * @return Metadata describing the public key ring or null if the key ring can not be inspected
+     */
+    public static KeyMetadata keyMetadata(final PGPPublicKeyRing publicKeyRing) {
+        if (publicKeyRing == null) {
+            return null;
+        }
+        try {
+            final KeyRingInfo keyInfo = PGPainless.inspectKeyRing(publicKeyRing);
+            final boolean isEncryptionCapable =
+                    keyInfo.getEncryptionSubkeys(EncryptionPurpose.COMMUNICATIONS).size() > 0;
+            // the latest expiration of the encryption subkeys unless the primary key expires first
+            final Date expirationDate =
+                    isEncryptionCapable
+                            ? keyInfo.getExpirationDateForUse(KeyFlag.ENCRYPT_COMMS)
+                            : keyInfo.getPrimaryKeyExpirationDate();
+            return ImmutableKeyMetadata.builder()
+                    .fingerprint(keyInfo.getFingerprint().toString())
+                    .isEncryptionCapable(isEncryptionCapable)
+                    .creationTime(keyInfo.getCreationDate().toInstant())
+                    .expirationTime(expirationDate == null ? null : expirationDate.toInstant())
+                    .build();
+        } catch (final Exception e) {
+            LOGGER.info("cannot inspect PublicKeyRing", e);
+            return null;
+        }
+    }
+
     public static byte[] keyData(final PGPKeyRing keyRing) {
         try {
             return keyRing.getEncoded();
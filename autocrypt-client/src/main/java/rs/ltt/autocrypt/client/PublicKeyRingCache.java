@@ -0,0 +1,132 @@
+package rs.ltt.autocrypt.client;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import rs.ltt.autocrypt.client.storage.KeyMetadata;
+
+/**
+ * A bounded cache of parsed public key rings. Entries are addressed by the SHA-256 digest of the
+ * encoded key data so the same key coming from different headers or peer states shares one entry.
+ * Besides the parsed key ring the cache remembers the {@link KeyMetadata} of the key and whether
+ * the key is suitable for encryption. Because that verdict depends on the current time (key expiry)
+ * entries are only kept for a limited amount of time after they have been created.
+ */
+public final class PublicKeyRingCache {
+
+    private static final long DEFAULT_MAXIMUM_WEIGHT = 8 * 1024 * 1024;
+    private static final Duration DEFAULT_EXPIRY = Duration.ofHours(1);
+
+    private static final PublicKeyRingCache DEFAULT =
+            new PublicKeyRingCache(DEFAULT_MAXIMUM_WEIGHT, DEFAULT_EXPIRY);
+
+    private final Cache<HashCode, Entry> cache;
+
+    /**
+     * @param maximumWeight The maximum sum of the sizes (in bytes) of the encoded key data of all
+     *     entries
+     * @param expiry How long an entry (and its encryption verdict) is considered valid
+     */
+    public PublicKeyRingCache(final long maximumWeight, final Duration expiry) {
+        this.cache =
+                CacheBuilder.newBuilder()
+                        .maximumWeight(maximumWeight)
+                        .weigher((HashCode key, Entry entry) -> entry.weight)
+                        .expireAfterWrite(expiry)
+                        .recordStats()
+                        .build();
+    }
+
+    /**
+     * @return The cache that is shared by all peer state managers that have not been configured
+     *     with a cache of their own
+     */
+    public static PublicKeyRingCache getDefault() {
+        return DEFAULT;
+    }
+
+    public PGPPublicKeyRing readPublicKeyRing(final byte[] keyData) {
+        final Entry entry = get(keyData);
+        return entry == null ? null : entry.publicKeyRing;
+    }
+
+    public boolean isSuitableForEncryption(final byte[] keyData) {
+        final Entry entry = get(keyData);
+        return entry != null && entry.suitableForEncryption;
+    }
+
+    /**
+     * @return The metadata of the key or null if the key data can not be parsed
+     */
+    public KeyMetadata getKeyMetadata(final byte[] keyData) {
+        final Entry entry = get(keyData);
+        return entry == null ? null : entry.keyMetadata;
+    }
+
+    /**
+     * @return true if the key data has already been parsed and reading it will not require any work
+     *     beyond hashing. Does not count towards the cache statistics.
+     */
+    public boolean isCached(final byte[] keyData) {
+        if (keyData == null || keyData.length == 0) {
+            return true;
+        }
+        return cache.asMap().containsKey(Hashing.sha256().hashBytes(keyData));
+    }
+
+    private Entry get(final byte[] keyData) {
+        if (keyData == null || keyData.length == 0) {
+            return null;
+        }
+        final HashCode digest = Hashing.sha256().hashBytes(keyData);
+        try {
+            return cache.get(digest, () -> Entry.of(keyData));
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private static class Entry {
+        private final PGPPublicKeyRing publicKeyRing;
+        private final KeyMetadata keyMetadata;
+        private final boolean suitableForEncryption;
+        private final int weight;
+
+        private Entry(
+                final PGPPublicKeyRing publicKeyRing,
+                final KeyMetadata keyMetadata,
+                final boolean suitableForEncryption,
+                final int weight) {
+            this.publicKeyRing = publicKeyRing;
+            this.keyMetadata = keyMetadata;
+            this.suitableForEncryption = suitableForEncryption;
+            this.weight = weight;
+        }
+
+        private static Entry of(final byte[] keyData) {
+            final PGPPublicKeyRing publicKeyRing = PGPKeyRings.readPublicKeyRing(keyData);
+            return new Entry(
+                    publicKeyRing,
+                    PGPKeyRings.keyMetadata(publicKeyRing),
+                    PGPKeyRings.isSuitableForEncryption(publicKeyRing),
+                    keyData.length);
+        }
+    }
+}
@@ -1,30 +1,45 @@
 package rs.ltt.autocrypt.client;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.Collections2;
 import java.util.Collection;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import rs.ltt.autocrypt.client.state.PreRecommendation;
 
+@SuppressWarnings("Guava")
 public class Recommendation {
 
-    public static final Recommendation DISABLE = new Recommendation(Decision.DISABLE, null);
+    public static final Recommendation DISABLE =
+            new Recommendation(Decision.DISABLE, Suppliers.ofInstance(null));
     private final Decision decision;
-    private final PGPPublicKeyRing publicKey;
+    private final Supplier<PGPPublicKeyRing> publicKey;
+    private final PreRecommendation preRecommendation;
 
     public Recommendation(Decision decision, PGPPublicKeyRing publicKey) {
+        this(decision, Suppliers.ofInstance(publicKey));
+    }
+
+    private Recommendation(final Decision decision, final Supplier<PGPPublicKeyRing> publicKey) {
         this.decision = decision;
         this.publicKey = publicKey;
+        this.preRecommendation = null;
+    }
+
+    private Recommendation(final Decision decision, final PreRecommendation preRecommendation) {
+        this.decision = decision;
+        this.publicKey = preRecommendation::getPublicKey;
+        this.preRecommendation = preRecommendation;
     }
 
     public static Recommendation encrypt(final PreRecommendation preRecommendation) {
         Preconditions.checkArgument(preRecommendation.getDecision() != Decision.DISABLE);
-        return new Recommendation(Decision.ENCRYPT, preRecommendation.getPublicKey());
+        return new Recommendation(Decision.ENCRYPT, preRecommendation);
     }
 
     public static Recommendation copyOf(PreRecommendation preRecommendation) {
-        return new Recommendation(
-                preRecommendation.getDecision(), preRecommendation.getPublicKey());
+        return new Recommendation(preRecommendation.getDecision(), preRecommendation);
     }
 
     public static Decision combine(final Collection<Recommendation> recommendations) {
@@ -32,11 +47,18 @@ public class Recommendation {
                 Collections2.transform(recommendations, Recommendation::getDecision));
     }
 
+    /**
+     * @return The decision or {@link Decision#DISABLE} if the public key could not be parsed once
+     *     it was requested
+     */
     public Decision getDecision() {
+        if (preRecommendation != null && preRecommendation.getDecision() == Decision.DISABLE) {
+            return Decision.DISABLE;
+        }
         return decision;
     }
 
     public PGPPublicKeyRing getPublicKey() {
-        return publicKey;
+        return publicKey.get();
     }
 }
@@ -0,0 +1,211 @@
+package rs.ltt.autocrypt.client;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rs.ltt.autocrypt.client.util.InstrumentedExecutorService;
+
+/**
+ * Generates secret key rings in the background ahead of need so that setting up a new account
+ * doesn’t have to wait for key generation. Because the user id is part of the (self-signed) key
+ * ring, keys are generated for a specific user id and can only be claimed by that user id.
+ *
+ * <p>The pool is bounded; at most {@code capacity} keys are pending or ready at any time. Key
+ * generation is throttled to the configured rate so that a burst of new accounts doesn’t saturate
+ * the CPU.
+ */
+@SuppressWarnings("UnstableApiUsage")
+public final class SecretKeyPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SecretKeyPool.class);
+
+    private static final Duration DEFAULT_MAXIMUM_WAIT = Duration.ofSeconds(5);
+
+    private static final ScheduledExecutorService TIMEOUT_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("autocrypt-keygen-timeout-%d")
+                            .setDaemon(true)
+                            .build());
+
+    private final int capacity;
+    private final RateLimiter rateLimiter;
+    private final ListeningExecutorService executorService;
+    private final ConcurrentMap<String, ListenableFuture<PGPSecretKeyRing>> keys =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The number of slots taken in {@link #keys}. Slots are reserved before a key is added and
+     * released once it has been removed so that concurrent calls to {@link #prepare(String,
+     * BooleanSupplier)} can not exceed the capacity.
+     */
+    private final AtomicInteger reserved = new AtomicInteger();
+
+    /**
+     * @param capacity The maximum number of keys that are pending or ready at any time
+     * @param keysPerSecond The maximum rate at which new keys are generated
+     */
+    public SecretKeyPool(final int capacity, final double keysPerSecond) {
+        this(
+                capacity,
+                keysPerSecond,
+                InstrumentedExecutorService.newFixedThreadPool(1, "autocrypt-keygen-%d"));
+    }
+
+    /**
+     * @param capacity The maximum number of keys that are pending or ready at any time
+     * @param keysPerSecond The maximum rate at which new keys are generated
+     * @param executorService The executor used to generate keys
+     */
+    public SecretKeyPool(
+            final int capacity,
+            final double keysPerSecond,
+            final ListeningExecutorService executorService) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        Preconditions.checkArgument(keysPerSecond > 0, "keysPerSecond must be positive");
+        Preconditions.checkArgument(executorService != null, "executorService must not be null");
+        this.capacity = capacity;
+        this.rateLimiter = RateLimiter.create(keysPerSecond);
+        this.executorService = executorService;
+    }
+
+    /**
+     * Schedules the generation of a key for the given user id unless one is already pending or
+     * ready.
+     *
+     * @return true if a key for the user id is pending or ready; false if the pool is full
+     */
+    public boolean prepare(final String userId) {
+        return prepare(userId, () -> true);
+    }
+
+    /**
+     * Same as {@link #prepare(String)} but the key is only generated if the condition still holds
+     * once it is its turn. The condition is evaluated on the executor of this pool, which makes it
+     * suitable for checks that require I/O, like asking the storage if the account has already been
+     * set up.
+     *
+     * @return true if a key for the user id is pending or ready; false if the pool is full
+     */
+    public boolean prepare(final String userId, final BooleanSupplier condition) {
+        Preconditions.checkArgument(userId != null, "userId must not be null");
+        Preconditions.checkArgument(condition != null, "condition must not be null");
+        if (keys.containsKey(userId)) {
+            return true;
+        }
+        if (!reserve()) {
+            return false;
+        }
+        final SettableFuture<PGPSecretKeyRing> future = SettableFuture.create();
+        if (keys.putIfAbsent(userId, future) != null) {
+            reserved.decrementAndGet();
+            return true;
+        }
+        future.addListener(
+                () -> {
+                    if (isFailedOrEmpty(future) && keys.remove(userId, future)) {
+                        reserved.decrementAndGet();
+                    }
+                },
+                MoreExecutors.directExecutor());
+        future.setFuture(
+                Futures.submit(
+                        () -> {
+                            if (!condition.getAsBoolean()) {
+                                return null;
+                            }
+                            rateLimiter.acquire();
+                            return PGPKeyRings.generateSecretKeyRing(userId);
+                        },
+                        executorService));
+        return true;
+    }
+
+    /**
+     * Removes the key for the given user id from the pool. If the key is still being generated the
+     * returned future completes once it is ready, but no later than five seconds from now.
+     *
+     * @return A future of the pre-generated key. The future resolves to null if no key has been
+     *     prepared or it did not become ready in time; it never fails.
+     */
+    public ListenableFuture<PGPSecretKeyRing> take(final String userId) {
+        return take(userId, DEFAULT_MAXIMUM_WAIT);
+    }
+
+    /**
+     * Removes the key for the given user id from the pool. If the key is still being generated the
+     * returned future completes once it is ready, but no later than the given duration from now. A
+     * key that does not become ready in time is cancelled; it might still be queued behind others.
+     * This never blocks the calling thread.
+     *
+     * @param maximumWait How long to wait for a pending key
+     * @return A future of the pre-generated key. The future resolves to null if no key has been
+     *     prepared or it did not become ready in time; it never fails.
+     */
+    public ListenableFuture<PGPSecretKeyRing> take(
+            final String userId, final Duration maximumWait) {
+        final ListenableFuture<PGPSecretKeyRing> future = keys.remove(userId);
+        if (future == null) {
+            return Futures.immediateFuture(null);
+        }
+        reserved.decrementAndGet();
+        final ListenableFuture<PGPSecretKeyRing> timeLimitedFuture =
+                future.isDone()
+                        ? future
+                        : Futures.withTimeout(
+                                future,
+                                maximumWait.toNanos(),
+                                TimeUnit.NANOSECONDS,
+                                TIMEOUT_EXECUTOR);
+        return Futures.catching(
+                timeLimitedFuture, Exception.class, e -> null, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * @return The number of keys that are either pending or ready
+     */
+    public int size() {
+        return reserved.get();
+    }
+
+    private boolean reserve() {
+        while (true) {
+            final int current = reserved.get();
+            if (current >= capacity) {
+                return false;
+            }
+            if (reserved.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static boolean isFailedOrEmpty(final ListenableFuture<?> future) {
+        if (future.isCancelled()) {
+            return true;
+        }
+        try {
+            return Futures.getDone(future) == null;
+        } catch (final ExecutionException e) {
+            LOGGER.warn("Unable to pre-generate key", e.getCause());
+            return true;
+        }
+    }
+}
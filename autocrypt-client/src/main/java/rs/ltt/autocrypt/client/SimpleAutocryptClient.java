@@ -5,6 +5,7 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import rs.ltt.autocrypt.client.storage.InMemoryStorage;
 import rs.ltt.autocrypt.client.storage.Storage;
+import rs.ltt.autocrypt.client.util.VirtualThreads;
 
 public class SimpleAutocryptClient extends AbstractAutocryptClient {
 
@@ -12,8 +13,16 @@ public class SimpleAutocryptClient extends AbstractAutocryptClient {
             String userId,
             Storage storage,
             ListeningExecutorService ioExecutorService,
-            DefaultSettings defaultSettings) {
-        super(userId, storage, ioExecutorService, defaultSettings);
+            ListeningExecutorService cryptoExecutorService,
+            DefaultSettings defaultSettings,
+            boolean usePeerStateFilter) {
+        super(
+                userId,
+                storage,
+                ioExecutorService,
+                cryptoExecutorService,
+                defaultSettings,
+                usePeerStateFilter);
     }
 
     public static Builder builder() {
@@ -24,8 +33,10 @@ public class SimpleAutocryptClient extends AbstractAutocryptClient {
 
         private String userId;
         private Storage storage = new InMemoryStorage();
-        private ListeningExecutorService ioExecutorService =
-                MoreExecutors.newDirectExecutorService();
+        private ListeningExecutorService ioExecutorService = null;
+        private ListeningExecutorService cryptoExecutorService = null;
+        private boolean useVirtualThreads = false;
+        private boolean usePeerStateFilter = false;
         private DefaultSettings defaultSettings = DefaultSettings.DEFAULT;
 
         private Builder() {}
@@ -48,6 +59,35 @@ public class SimpleAutocryptClient extends AbstractAutocryptClient {
             return this;
         }
 
+        public Builder cryptoExecutorService(final ListeningExecutorService cryptoExecutorService) {
+            Preconditions.checkArgument(
+                    cryptoExecutorService != null, "cryptoExecutorService must not be null");
+            this.cryptoExecutorService = cryptoExecutorService;
+            return this;
+        }
+
+        /**
+         * Run IO and crypto stages on virtual threads (one per task) unless an executor has been
+         * configured explicitly for the respective stage. This requires Java 21 or newer; on older
+         * JVMs the default executors are used instead.
+         */
+        public Builder useVirtualThreads(final boolean useVirtualThreads) {
+            this.useVirtualThreads = useVirtualThreads;
+            return this;
+        }
+
+        /**
+         * Rule out peers that have no key material from memory instead of asking the storage. The
+         * storage needs to support {@link Storage#getAddressesWithKeyMaterial()} and is scanned
+         * once per storage instance on the IO executor. Only enable this if every write to the
+         * storage goes through clients of this process; peers written to by anyone else would not
+         * be found. Disabled by default.
+         */
+        public Builder usePeerStateFilter(final boolean usePeerStateFilter) {
+            this.usePeerStateFilter = usePeerStateFilter;
+            return this;
+        }
+
         public Builder defaultSettings(final DefaultSettings defaultSettings) {
             Preconditions.checkArgument(
                     defaultSettings != null, "defaultSettings must not be null");
@@ -57,8 +97,22 @@ public class SimpleAutocryptClient extends AbstractAutocryptClient {
 
         public SimpleAutocryptClient build() {
             Preconditions.checkState(this.userId != null, "UserId must not be null");
+            final ListeningExecutorService ioExecutorService =
+                    this.ioExecutorService != null
+                            ? this.ioExecutorService
+                            : VirtualThreads.orFallback(
+                                    useVirtualThreads, MoreExecutors.newDirectExecutorService());
+            final ListeningExecutorService cryptoExecutorService =
+                    this.cryptoExecutorService != null
+                            ? this.cryptoExecutorService
+                            : VirtualThreads.orFallback(useVirtualThreads, CRYPTO_EXECUTOR);
             return new SimpleAutocryptClient(
-                    this.userId, this.storage, this.ioExecutorService, this.defaultSettings);
+                    this.userId,
+                    this.storage,
+                    ioExecutorService,
+                    cryptoExecutorService,
+                    this.defaultSettings,
+                    this.usePeerStateFilter);
         }
     }
 }
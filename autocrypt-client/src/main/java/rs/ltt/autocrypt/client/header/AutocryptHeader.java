@@ -1,12 +1,10 @@
 package rs.ltt.autocrypt.client.header;
 
-import com.google.common.base.CharMatcher;
-import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
-import com.google.common.io.BaseEncoding;
-import java.util.List;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
@@ -21,32 +19,36 @@ import rs.ltt.autocrypt.client.PGPKeyRings;
 @Value.Immutable
 public abstract class AutocryptHeader {
 
-    private static final String KEY_ADDRESS = "addr";
-    private static final String KEY_ENCRYPTION_PREFERENCE = "prefer-encrypt";
-    private static final String KEY_KEY_DATA = "keydata";
+    static final String KEY_ADDRESS = "addr";
+    static final String KEY_ENCRYPTION_PREFERENCE = "prefer-encrypt";
+    static final String KEY_KEY_DATA = "keydata";
+
+    public static final int MAX_LINE_LENGTH = 78;
 
     private static final Pattern ANGLE_ADDR_PATTERN = Pattern.compile("<(.+?)>");
 
     public static AutocryptHeader parse(final String header) {
-        final ImmutableAutocryptHeader.Builder builder = ImmutableAutocryptHeader.builder();
-        for (final Attribute attribute : Attribute.parse(header)) {
-            final String key = attribute.getKey();
-            final String value = attribute.getValue();
-            if (KEY_ADDRESS.equals(key)) {
-                builder.address(attribute.getValue());
-            } else if (KEY_ENCRYPTION_PREFERENCE.equals(key)) {
-                builder.encryptionPreference(EncryptionPreference.of(value));
-            } else if (KEY_KEY_DATA.equals(key)) {
-                if (Strings.isNullOrEmpty(value)) {
-                    throw new IllegalArgumentException("Value for keydata can not be empty");
-                }
-                builder.keyData(
-                        BaseEncoding.base64().decode(CharMatcher.whitespace().removeFrom(value)));
-            } else if (key.charAt(0) != '_') {
-                throw new IllegalArgumentException(String.format("Unexpected attribute %s", key));
-            }
+        return AutocryptHeaderParser.parse(header);
+    }
+
+    /**
+     * Parses the header only if its address is accepted by the filter. The address and the names of
+     * the attributes are checked before the key data is looked at, which makes rejecting headers
+     * considerably cheaper than parsing them.
+     *
+     * @param header The header value
+     * @param addressFilter Is called with the (not normalized) address of the header
+     * @return The parsed header or null if the header is malformed, lacks an address or key data,
+     *     has an unknown critical attribute or if its address was rejected by the filter
+     */
+    public static AutocryptHeader parse(
+            final String header, final Predicate<String> addressFilter) {
+        Preconditions.checkNotNull(addressFilter);
+        try {
+            return AutocryptHeaderParser.parse(header, addressFilter);
+        } catch (final RuntimeException e) {
+            return null;
         }
-        return builder.build();
     }
 
     public static AutocryptHeader of(
@@ -87,22 +89,52 @@ public abstract class AutocryptHeader {
     }
 
     public String toHeaderValue() {
-        return Joiner.on("; ").join(Lists.transform(toAttributes(), Attribute::formatted));
+        final byte[] keyData = getKeyData();
+        final StringBuilder builder =
+                new StringBuilder(
+                        AutocryptHeaderWriter.length(this, keyData == null ? 0 : keyData.length));
+        try {
+            AutocryptHeaderWriter.write(this, builder, false, 0);
+        } catch (final IOException e) {
+            throw new AssertionError(e);
+        }
+        return builder.toString();
     }
 
-    private List<Attribute> toAttributes() {
-        final ImmutableList.Builder<Attribute> attributes = new ImmutableList.Builder<>();
-        attributes.add(new Attribute(KEY_ADDRESS, getAddress()));
-        final EncryptionPreference encryptionPreference = getEncryptionPreference();
-        if (encryptionPreference != null) {
-            attributes.add(
-                    new Attribute(KEY_ENCRYPTION_PREFERENCE, encryptionPreference.toString()));
-        }
-        final byte[] keyData = getKeyData();
-        if (keyData != null) {
-            attributes.add(new Attribute(KEY_KEY_DATA, BaseEncoding.base64().encode(keyData)));
+    /**
+     * Writes the header value folded so that no line exceeds {@link #MAX_LINE_LENGTH} characters
+     * (RFC 5322). Lines are separated by CRLF followed by a single space.
+     *
+     * @param appendable The destination
+     * @param column The column the header value starts at. This is usually the length of the header
+     *     name plus two (for the colon and the space).
+     */
+    public void writeTo(final Appendable appendable, final int column) throws IOException {
+        Preconditions.checkArgument(
+                column >= 0 && column < MAX_LINE_LENGTH,
+                "Column must be within 0 and " + MAX_LINE_LENGTH);
+        AutocryptHeaderWriter.write(this, appendable, true, column);
+    }
+
+    /**
+     * Same as {@link #writeTo(Appendable, int)} but writes into a caller supplied buffer. Every
+     * character is written as a single byte starting at the current position of the buffer.
+     *
+     * @param buffer The destination
+     * @param column The column the header value starts at
+     * @throws java.nio.BufferOverflowException if the remaining space in the buffer is not
+     *     sufficient
+     */
+    public void writeTo(final ByteBuffer buffer, final int column) {
+        Preconditions.checkArgument(
+                column >= 0 && column < MAX_LINE_LENGTH,
+                "Column must be within 0 and " + MAX_LINE_LENGTH);
+        try {
+            AutocryptHeaderWriter.write(
+                    this, new AutocryptHeaderWriter.ByteBufferAppendable(buffer), true, column);
+        } catch (final IOException e) {
+            throw new AssertionError(e);
         }
-        return attributes.build();
     }
 
     public abstract String getAddress();
@@ -0,0 +1,297 @@
+package rs.ltt.autocrypt.client.header;
+
+import com.google.common.base.CharMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+/**
+ * Parses Autocrypt header values in a single pass over the input. Attribute boundaries are recorded
+ * as indices into the original character sequence and only the values that are actually needed are
+ * copied out. Key data is base64 decoded directly into the resulting byte array while skipping
+ * folding white space. Decoding of the key data is deferred until it is first accessed; the header
+ * is however validated up front.
+ *
+ * <p>Accepts and rejects exactly the same input as {@link Attribute#parse(String)} followed by
+ * {@link com.google.common.io.BaseEncoding#base64()} decoding of the key data.
+ */
+final class AutocryptHeaderParser {
+
+    private static final CharMatcher WHITESPACE = CharMatcher.whitespace();
+
+    private static final char PADDING = '=';
+
+    private static final int[] BASE64_DECODE_TABLE = new int[128];
+
+    // every attribute is stored as three consecutive ints: key start, separator and end
+    private static final int FIELDS = 3;
+
+    static {
+        Arrays.fill(BASE64_DECODE_TABLE, -1);
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); ++i) {
+            BASE64_DECODE_TABLE[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private AutocryptHeaderParser() {
+        throw new IllegalStateException("Do not instantiate me");
+    }
+
+    static AutocryptHeader parse(final CharSequence header) {
+        return parse(header, scan(header));
+    }
+
+    /**
+     * Scans the header and checks the address and the attribute names before doing any further
+     * work. Only headers that pass this check are fully parsed and validated.
+     *
+     * @return The parsed header or null if the header was rejected by the pre-scan
+     */
+    static AutocryptHeader parse(final CharSequence header, final Predicate<String> addressFilter) {
+        final int[] attributes;
+        try {
+            attributes = scan(header);
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+        if (!accept(header, attributes, addressFilter)) {
+            return null;
+        }
+        return parse(header, attributes);
+    }
+
+    /**
+     * Looks only at the attribute names and the address. Rejects headers that would fail to parse
+     * because of an unknown critical attribute, a missing address or missing key data and headers
+     * whose address is not accepted by the filter.
+     */
+    private static boolean accept(
+            final CharSequence header,
+            final int[] attributes,
+            final Predicate<String> addressFilter) {
+        String address = null;
+        boolean hasKeyData = false;
+        for (int i = 0; i < attributes.length; i += FIELDS) {
+            final int keyStart = attributes[i];
+            final int separator = attributes[i + 1];
+            final int end = attributes[i + 2];
+            final int keyEnd = separator < 0 ? end : separator;
+            if (matches(header, keyStart, keyEnd, AutocryptHeader.KEY_ADDRESS)) {
+                if (separator < 0) {
+                    return false;
+                }
+                address = value(header, separator, end);
+            } else if (matches(header, keyStart, keyEnd, AutocryptHeader.KEY_KEY_DATA)) {
+                hasKeyData = true;
+            } else if (!matches(header, keyStart, keyEnd, AutocryptHeader.KEY_ENCRYPTION_PREFERENCE)
+                    && header.charAt(keyStart) != '_') {
+                return false;
+            }
+        }
+        return address != null && hasKeyData && addressFilter.test(address);
+    }
+
+    private static AutocryptHeader parse(final CharSequence header, final int[] attributes) {
+        String address = null;
+        EncryptionPreference encryptionPreference = null;
+        int keyDataStart = -1;
+        int keyDataEnd = -1;
+        for (int i = 0; i < attributes.length; i += FIELDS) {
+            final int keyStart = attributes[i];
+            final int separator = attributes[i + 1];
+            final int end = attributes[i + 2];
+            final int keyEnd = separator < 0 ? end : separator;
+            if (matches(header, keyStart, keyEnd, AutocryptHeader.KEY_ADDRESS)) {
+                address = Objects.requireNonNull(value(header, separator, end), "address");
+            } else if (matches(
+                    header, keyStart, keyEnd, AutocryptHeader.KEY_ENCRYPTION_PREFERENCE)) {
+                encryptionPreference = EncryptionPreference.of(value(header, separator, end));
+            } else if (matches(header, keyStart, keyEnd, AutocryptHeader.KEY_KEY_DATA)) {
+                if (separator < 0 || separator + 1 == end) {
+                    throw new IllegalArgumentException("Value for keydata can not be empty");
+                }
+                validateBase64(header, separator + 1, end);
+                keyDataStart = separator + 1;
+                keyDataEnd = end;
+            } else if (header.charAt(keyStart) != '_') {
+                throw new IllegalArgumentException(
+                        String.format(
+                                "Unexpected attribute %s",
+                                header.subSequence(keyStart, keyEnd).toString()));
+            }
+        }
+        if (address == null || keyDataStart < 0) {
+            final List<String> missing = new ArrayList<>();
+            if (address == null) {
+                missing.add("address");
+            }
+            if (keyDataStart < 0) {
+                missing.add("keyData");
+            }
+            throw new IllegalStateException(
+                    String.format(
+                            "Cannot build AutocryptHeader, some of required attributes are not"
+                                    + " set %s",
+                            missing));
+        }
+        return new ParsedAutocryptHeader(
+                address, encryptionPreference, header, keyDataStart, keyDataEnd);
+    }
+
+    /**
+     * Finds the boundaries of all attributes. Attribute names start at the first non white space
+     * character and end at the first unquoted equals sign. Attributes are separated by unquoted
+     * semicolons.
+     */
+    private static int[] scan(final CharSequence header) {
+        int[] attributes = new int[4 * FIELDS];
+        int size = 0;
+        int keyStart = -1;
+        int separator = -1;
+        boolean inQuote = false;
+        final int length = header.length();
+        for (int i = 0; i < length; ++i) {
+            final char c = header.charAt(i);
+            if (!inQuote) {
+                if (c == ';') {
+                    attributes = add(attributes, size, keyStart, separator, i);
+                    size += FIELDS;
+                    keyStart = -1;
+                    separator = -1;
+                    continue;
+                } else if (c == '=' && separator < 0) {
+                    separator = i;
+                    continue;
+                }
+            }
+            if (c == '"') {
+                inQuote = !inQuote;
+            }
+            if (separator < 0 && keyStart < 0 && !Character.isWhitespace(c)) {
+                keyStart = i;
+            }
+        }
+        if (inQuote) {
+            throw new IllegalArgumentException("Unexpected end (quotation not closed)");
+        }
+        if (keyStart >= 0 || separator >= 0) {
+            attributes = add(attributes, size, keyStart, separator, length);
+            size += FIELDS;
+        }
+        return size == attributes.length ? attributes : Arrays.copyOf(attributes, size);
+    }
+
+    private static int[] add(
+            final int[] attributes,
+            final int size,
+            final int keyStart,
+            final int separator,
+            final int end) {
+        if (keyStart < 0) {
+            throw new IllegalArgumentException("Attribute name can not be empty");
+        }
+        final int[] destination =
+                size + FIELDS > attributes.length
+                        ? Arrays.copyOf(attributes, attributes.length * 2)
+                        : attributes;
+        destination[size] = keyStart;
+        destination[size + 1] = separator;
+        destination[size + 2] = end;
+        return destination;
+    }
+
+    private static boolean matches(
+            final CharSequence header, final int start, final int end, final String key) {
+        if (end - start != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); ++i) {
+            if (header.charAt(start + i) != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String value(final CharSequence header, final int separator, final int end) {
+        return separator < 0 ? null : header.subSequence(separator + 1, end).toString();
+    }
+
+    /**
+     * Checks that the characters between start and end are valid base64 (ignoring white space)
+     * without decoding them. Like Guava’s {@link com.google.common.io.BaseEncoding#base64()}
+     * trailing padding is optional.
+     *
+     * @return The number of bytes the characters decode to
+     */
+    static int validateBase64(final CharSequence input, final int start, final int end) {
+        final int last = trimTrailingPadding(input, start, end);
+        int count = 0;
+        for (int i = start; i < last; ++i) {
+            final char c = input.charAt(i);
+            if (WHITESPACE.matches(c)) {
+                continue;
+            }
+            if (decode(c) < 0) {
+                throw new IllegalArgumentException(
+                        String.format("Unrecognized character: 0x%s", Integer.toHexString(c)));
+            }
+            ++count;
+        }
+        final int remainder = count % 4;
+        if (remainder == 1) {
+            throw new IllegalArgumentException(String.format("Invalid input length %d", count));
+        }
+        return count / 4 * 3 + (remainder == 0 ? 0 : remainder - 1);
+    }
+
+    /** Decodes base64 that has previously been checked with {@link #validateBase64}. */
+    static byte[] decodeBase64(final CharSequence input, final int start, final int end) {
+        final byte[] output = new byte[validateBase64(input, start, end)];
+        final int last = trimTrailingPadding(input, start, end);
+        int position = 0;
+        int chunk = 0;
+        int chunkLength = 0;
+        for (int i = start; i < last; ++i) {
+            final char c = input.charAt(i);
+            if (WHITESPACE.matches(c)) {
+                continue;
+            }
+            chunk = (chunk << 6) | decode(c);
+            if (++chunkLength == 4) {
+                output[position++] = (byte) (chunk >> 16);
+                output[position++] = (byte) (chunk >> 8);
+                output[position++] = (byte) chunk;
+                chunk = 0;
+                chunkLength = 0;
+            }
+        }
+        if (chunkLength == 2) {
+            output[position] = (byte) (chunk >> 4);
+        } else if (chunkLength == 3) {
+            output[position++] = (byte) (chunk >> 10);
+            output[position] = (byte) (chunk >> 2);
+        }
+        return output;
+    }
+
+    private static int trimTrailingPadding(
+            final CharSequence input, final int start, final int end) {
+        int last = end;
+        while (last > start) {
+            final char c = input.charAt(last - 1);
+            if (c != PADDING && !WHITESPACE.matches(c)) {
+                break;
+            }
+            --last;
+        }
+        return last;
+    }
+
+    private static int decode(final char c) {
+        return c < BASE64_DECODE_TABLE.length ? BASE64_DECODE_TABLE[c] : -1;
+    }
+}
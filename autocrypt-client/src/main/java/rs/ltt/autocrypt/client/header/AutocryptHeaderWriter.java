@@ -0,0 +1,183 @@
+package rs.ltt.autocrypt.client.header;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes Autocrypt header values directly into an {@link Appendable}. Key data is base64 encoded on
+ * the fly. When folding is enabled lines are kept within {@link AutocryptHeader#MAX_LINE_LENGTH}
+ * characters by inserting folding white space between attributes and, if necessary, within the key
+ * data. The width is checked before each attribute, including the separator that follows it. Only
+ * an address that is too long to fit on a line by itself can exceed the limit. Short headers that
+ * fit on a single line are written exactly like {@link AutocryptHeader#toHeaderValue()}.
+ */
+final class AutocryptHeaderWriter {
+
+    private static final char[] BASE64_ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final char PADDING = '=';
+
+    private static final String ATTRIBUTE_SEPARATOR = "; ";
+
+    private static final String FOLD = "\r\n ";
+
+    private final Appendable appendable;
+    private final boolean fold;
+    private int column;
+    private boolean empty = true;
+
+    private AutocryptHeaderWriter(
+            final Appendable appendable, final boolean fold, final int column) {
+        this.appendable = appendable;
+        this.fold = fold;
+        this.column = column;
+    }
+
+    static void write(
+            final AutocryptHeader header,
+            final Appendable appendable,
+            final boolean fold,
+            final int column)
+            throws IOException {
+        final AutocryptHeaderWriter writer = new AutocryptHeaderWriter(appendable, fold, column);
+        final EncryptionPreference encryptionPreference = header.getEncryptionPreference();
+        final byte[] keyData = header.getKeyData();
+        writer.attribute(
+                AutocryptHeader.KEY_ADDRESS,
+                header.getAddress(),
+                encryptionPreference != null || keyData != null);
+        if (encryptionPreference != null) {
+            writer.attribute(
+                    AutocryptHeader.KEY_ENCRYPTION_PREFERENCE,
+                    encryptionPreference.toString(),
+                    keyData != null);
+        }
+        if (keyData != null) {
+            writer.keyData(keyData);
+        }
+    }
+
+    /**
+     * @return The length of the unfolded header value
+     */
+    static int length(final AutocryptHeader header, final int keyDataLength) {
+        final EncryptionPreference encryptionPreference = header.getEncryptionPreference();
+        int length = AutocryptHeader.KEY_ADDRESS.length() + 1 + header.getAddress().length();
+        if (encryptionPreference != null) {
+            length +=
+                    ATTRIBUTE_SEPARATOR.length()
+                            + AutocryptHeader.KEY_ENCRYPTION_PREFERENCE.length()
+                            + 1
+                            + encryptionPreference.toString().length();
+        }
+        length +=
+                ATTRIBUTE_SEPARATOR.length()
+                        + AutocryptHeader.KEY_KEY_DATA.length()
+                        + 1
+                        + (keyDataLength + 2) / 3 * 4;
+        return length;
+    }
+
+    /**
+     * @param followed Whether another attribute follows. The ';' of the next separator is always
+     *     written on the same line so the attribute is only placed on the current line if there is
+     *     room left for that, too.
+     */
+    private void attribute(final String key, final String value, final boolean followed)
+            throws IOException {
+        separator(key.length() + 1 + value.length() + (followed ? 1 : 0));
+        appendable.append(key).append('=').append(value);
+        column += key.length() + 1 + value.length();
+    }
+
+    private void keyData(final byte[] keyData) throws IOException {
+        // the key name should at least be followed by the first character of the key data
+        separator(AutocryptHeader.KEY_KEY_DATA.length() + 2);
+        appendable.append(AutocryptHeader.KEY_KEY_DATA).append('=');
+        column += AutocryptHeader.KEY_KEY_DATA.length() + 1;
+        int i = 0;
+        for (; i + 2 < keyData.length; i += 3) {
+            final int chunk =
+                    (keyData[i] & 0xff) << 16
+                            | (keyData[i + 1] & 0xff) << 8
+                            | keyData[i + 2] & 0xff;
+            character(BASE64_ALPHABET[chunk >>> 18]);
+            character(BASE64_ALPHABET[(chunk >>> 12) & 0x3f]);
+            character(BASE64_ALPHABET[(chunk >>> 6) & 0x3f]);
+            character(BASE64_ALPHABET[chunk & 0x3f]);
+        }
+        final int remaining = keyData.length - i;
+        if (remaining > 0) {
+            final int chunk =
+                    (keyData[i] & 0xff) << 16 | (remaining == 2 ? (keyData[i + 1] & 0xff) << 8 : 0);
+            character(BASE64_ALPHABET[chunk >>> 18]);
+            character(BASE64_ALPHABET[(chunk >>> 12) & 0x3f]);
+            character(remaining == 2 ? BASE64_ALPHABET[(chunk >>> 6) & 0x3f] : PADDING);
+            character(PADDING);
+        }
+    }
+
+    private void separator(final int nextLength) throws IOException {
+        if (empty) {
+            empty = false;
+            // the header value may start on the line after the header name
+            if (fold && column > 1 && column + nextLength > AutocryptHeader.MAX_LINE_LENGTH) {
+                appendable.append(FOLD);
+                column = 1;
+            }
+            return;
+        }
+        if (fold
+                && column + ATTRIBUTE_SEPARATOR.length() + nextLength
+                        > AutocryptHeader.MAX_LINE_LENGTH) {
+            appendable.append(';').append(FOLD);
+            column = 1;
+        } else {
+            appendable.append(ATTRIBUTE_SEPARATOR);
+            column += ATTRIBUTE_SEPARATOR.length();
+        }
+    }
+
+    private void character(final char c) throws IOException {
+        if (fold && column >= AutocryptHeader.MAX_LINE_LENGTH) {
+            appendable.append(FOLD);
+            column = 1;
+        }
+        appendable.append(c);
+        ++column;
+    }
+
+    /**
+     * Writes characters as single bytes into a caller supplied buffer. Header values are US-ASCII;
+     * this matches how mime4j encodes header fields.
+     */
+    static final class ByteBufferAppendable implements Appendable {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferAppendable(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public ByteBufferAppendable append(final CharSequence charSequence) {
+            return append(charSequence, 0, charSequence.length());
+        }
+
+        @Override
+        public ByteBufferAppendable append(
+                final CharSequence charSequence, final int start, final int end) {
+            for (int i = start; i < end; ++i) {
+                buffer.put((byte) charSequence.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public ByteBufferAppendable append(final char c) {
+            buffer.put((byte) c);
+            return this;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package rs.ltt.autocrypt.client.header;
+
+import java.util.Arrays;
+import java.util.Objects;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * An {@link AutocryptHeader} as read from an incoming message. Instead of the decoded key data it
+ * records where the (already validated) base64 encoded key data is located in the original header
+ * value. The key data is only decoded when {@link #getKeyData()} is first called. Headers that are
+ * discarded for other reasons (mismatching address, outdated) never decode their key.
+ */
+final class ParsedAutocryptHeader extends AutocryptHeader {
+
+    private final String address;
+    private final EncryptionPreference encryptionPreference;
+    private final CharSequence header;
+    private final int keyDataStart;
+    private final int keyDataEnd;
+
+    private volatile byte[] keyData;
+
+    ParsedAutocryptHeader(
+            final String address,
+            final EncryptionPreference encryptionPreference,
+            final CharSequence header,
+            final int keyDataStart,
+            final int keyDataEnd) {
+        this.address = address;
+        this.encryptionPreference = encryptionPreference;
+        this.header = header;
+        this.keyDataStart = keyDataStart;
+        this.keyDataEnd = keyDataEnd;
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public byte[] getKeyData() {
+        byte[] keyData = this.keyData;
+        if (keyData == null) {
+            keyData = AutocryptHeaderParser.decodeBase64(header, keyDataStart, keyDataEnd);
+            this.keyData = keyData;
+        }
+        return keyData.clone();
+    }
+
+    @Nullable
+    @Override
+    public EncryptionPreference getEncryptionPreference() {
+        return encryptionPreference;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ParsedAutocryptHeader)) {
+            return false;
+        }
+        final ParsedAutocryptHeader that = (ParsedAutocryptHeader) other;
+        return address.equals(that.address)
+                && encryptionPreference == that.encryptionPreference
+                && Arrays.equals(getKeyData(), that.getKeyData());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(address, encryptionPreference, Arrays.hashCode(getKeyData()));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "AutocryptHeader{address=%s, encryptionPreference=%s}",
+                address, encryptionPreference);
+    }
+}
@@ -1,20 +1,32 @@
 package rs.ltt.autocrypt.client.state;
 
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import java.time.Instant;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import rs.ltt.autocrypt.client.PGPKeyRings;
 
+@SuppressWarnings("Guava")
 public abstract class AbstractAutocryptUpdate {
 
     private final String from;
     private final Instant effectiveDate;
-    private final byte[] keyData;
+    private final Supplier<byte[]> keyData;
 
     public AbstractAutocryptUpdate(
             final String from, final Instant effectiveDate, final byte[] keyData) {
+        this(from, effectiveDate, Suppliers.ofInstance(keyData));
+    }
+
+    /**
+     * @param keyData Supplies the key data when it is first needed. The supplier is called at most
+     *     once.
+     */
+    protected AbstractAutocryptUpdate(
+            final String from, final Instant effectiveDate, final Supplier<byte[]> keyData) {
         this.from = from;
         this.effectiveDate = effectiveDate;
-        this.keyData = keyData;
+        this.keyData = Suppliers.memoize(keyData);
     }
 
     public String getFrom() {
@@ -26,10 +38,10 @@ public abstract class AbstractAutocryptUpdate {
     }
 
     public byte[] getKeyData() {
-        return keyData;
+        return keyData.get();
     }
 
     public PGPPublicKeyRing getPublicKeyRing() {
-        return PGPKeyRings.readPublicKeyRing(keyData);
+        return PGPKeyRings.readPublicKeyRing(getKeyData());
     }
 }
@@ -1,6 +1,7 @@
 package rs.ltt.autocrypt.client.state;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -10,9 +11,11 @@ import java.util.Collection;
 import java.util.List;
 import rs.ltt.autocrypt.client.header.AutocryptHeader;
 
+@SuppressWarnings("Guava")
 public class GossipUpdate extends AbstractAutocryptUpdate {
 
-    private GossipUpdate(final String from, final Instant effectiveDate, final byte[] keyData) {
+    private GossipUpdate(
+            final String from, final Instant effectiveDate, final Supplier<byte[]> keyData) {
         super(from, effectiveDate, keyData);
     }
 
@@ -43,7 +46,7 @@ public class GossipUpdate extends AbstractAutocryptUpdate {
         public Builder add(final AutocryptHeader header) {
             Preconditions.checkNotNull(header);
             final GossipUpdate gossipUpdate =
-                    new GossipUpdate(header.getAddress(), effectiveDate, header.getKeyData());
+                    new GossipUpdate(header.getAddress(), effectiveDate, header::getKeyData);
             this.gossipUpdates.put(gossipUpdate.getFrom(), gossipUpdate);
             return this;
         }
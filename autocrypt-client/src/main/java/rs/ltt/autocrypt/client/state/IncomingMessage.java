@@ -0,0 +1,30 @@
+package rs.ltt.autocrypt.client.state;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import org.immutables.value.Value;
+
+/**
+ * The Autocrypt relevant parts of a received message. Used to process the headers of many messages
+ * at once.
+ */
+@Value.Immutable(builder = false)
+public interface IncomingMessage {
+
+    static IncomingMessage of(
+            final String from,
+            final Instant effectiveDate,
+            final Collection<String> autocryptHeaders) {
+        return ImmutableIncomingMessage.of(from, effectiveDate, autocryptHeaders);
+    }
+
+    @Value.Parameter
+    String getFrom();
+
+    @Value.Parameter
+    Instant getEffectiveDate();
+
+    @Value.Parameter
+    List<String> getAutocryptHeaders();
+}
@@ -0,0 +1,76 @@
+package rs.ltt.autocrypt.client.state;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import java.nio.charset.StandardCharsets;
+import rs.ltt.autocrypt.client.storage.Storage;
+
+/**
+ * An in-memory Bloom filter of the addresses of all peers with key material (either a public key or
+ * a gossip key). It allows the {@link PeerStateManager} to answer lookups for the vast majority of
+ * addresses that never sent an Autocrypt header without going to the storage.
+ *
+ * <p>The filter has no false negatives but only once it has been populated with the addresses that
+ * are already in the storage. Until then it does not rule out any address. Addresses are only ever
+ * added; peers do not lose their key material.
+ */
+@SuppressWarnings("UnstableApiUsage")
+public final class PeerStateFilter {
+
+    private static final long DEFAULT_EXPECTED_INSERTIONS = 100_000;
+    private static final double DEFAULT_FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    private final BloomFilter<CharSequence> bloomFilter;
+    private volatile boolean populated = false;
+
+    public PeerStateFilter() {
+        this(DEFAULT_EXPECTED_INSERTIONS, DEFAULT_FALSE_POSITIVE_PROBABILITY);
+    }
+
+    /**
+     * @param expectedInsertions The expected number of peers with key material. Exceeding it
+     *     increases the false positive probability but never results in false negatives.
+     * @param falsePositiveProbability The desired probability of a peer without key material not
+     *     being ruled out
+     */
+    public PeerStateFilter(final long expectedInsertions, final double falsePositiveProbability) {
+        Preconditions.checkArgument(expectedInsertions > 0, "expectedInsertions must be positive");
+        this.bloomFilter =
+                BloomFilter.create(
+                        Funnels.stringFunnel(StandardCharsets.UTF_8),
+                        expectedInsertions,
+                        falsePositiveProbability);
+    }
+
+    /**
+     * Adds the addresses of all peers with key material that are currently in the storage. Can be
+     * called again at any time, for example after the storage has been modified by someone other
+     * than the {@link PeerStateManager}.
+     *
+     * @throws UnsupportedOperationException if the storage can not enumerate its peers. The filter
+     *     stays unpopulated.
+     */
+    public void populate(final Storage storage) {
+        for (final String address : storage.getAddressesWithKeyMaterial()) {
+            bloomFilter.put(address);
+        }
+        this.populated = true;
+    }
+
+    public boolean isPopulated() {
+        return populated;
+    }
+
+    void put(final String address) {
+        bloomFilter.put(address);
+    }
+
+    /**
+     * @param address The normalized address
+     * @return true if the peer definitely has no key material
+     */
+    boolean excludes(final String address) {
+        return populated && !bloomFilter.mightContain(address);
+    }
+}
@@ -1,65 +1,273 @@
 package rs.ltt.autocrypt.client.state;
 
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLongArray;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import rs.ltt.autocrypt.client.Addresses;
-import rs.ltt.autocrypt.client.PGPKeyRings;
+import rs.ltt.autocrypt.client.PublicKeyRingCache;
+import rs.ltt.autocrypt.client.storage.KeyMetadata;
 import rs.ltt.autocrypt.client.storage.PeerState;
 import rs.ltt.autocrypt.client.storage.Storage;
 
+@SuppressWarnings({"Guava", "UnstableApiUsage"})
 public class PeerStateManager {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PeerStateManager.class);
 
     private static final Duration AUTOCRYPT_HEADER_EXPIRY = Duration.ofDays(35);
 
+    private static final int MAXIMUM_RECOMMENDATION_CACHE_SIZE = 1024;
+
+    private static final int WRITE_GENERATION_STRIPES = 64;
+
+    /**
+     * One manager per storage instance (compared by identity). Entries are dropped once neither the
+     * storage nor the manager is referenced anymore.
+     */
+    private static final LoadingCache<Storage, PeerStateManager> SHARED_MANAGERS =
+            CacheBuilder.newBuilder()
+                    .weakKeys()
+                    .weakValues()
+                    .build(CacheLoader.from(PeerStateManager::new));
+
     private final Storage storage;
+    private final PublicKeyRingCache publicKeyRingCache;
+    private volatile PeerStateFilter peerStateFilter;
+
+    /**
+     * Preliminary recommendations by normalized address. Apart from the expiry of the recommended
+     * key a recommendation only depends on the peer state (including the question whether the
+     * Autocrypt header is older than last_seen minus {@link #AUTOCRYPT_HEADER_EXPIRY}) and not on
+     * the current time. Entries therefore stay valid until this manager writes to the peer state of
+     * that address or until the key expires. Clients share the manager of their storage (see {@link
+     * #shared(Storage)}). Writes to the storage that don’t go through a manager of this process are
+     * not seen until the entry is evicted.
+     */
+    private final Cache<String, PreRecommendation> recommendationCache =
+            CacheBuilder.newBuilder().maximumSize(MAXIMUM_RECOMMENDATION_CACHE_SIZE).build();
+
+    /**
+     * Incremented on every write to an address in the respective stripe; used to detect
+     * recommendations computed from stale state. Striping keeps writes to most other peers (for
+     * example while ingesting a mailbox) from discarding freshly computed recommendations. A write
+     * still affects every address that hashes to the same stripe: recommendations for those peers
+     * that are being computed at that moment are returned but not cached and will be computed again
+     * on the next request. Recommendations that are already cached are only invalidated for the
+     * address that has been written to.
+     */
+    private final AtomicLongArray writeGenerations = new AtomicLongArray(WRITE_GENERATION_STRIPES);
 
     public PeerStateManager(final Storage storage) {
+        this(storage, PublicKeyRingCache.getDefault());
+    }
+
+    public PeerStateManager(final Storage storage, final PublicKeyRingCache publicKeyRingCache) {
         this.storage = storage;
+        this.publicKeyRingCache = publicKeyRingCache;
+    }
+
+    /**
+     * @return The manager shared by everyone in this process that works with the given storage
+     *     instance. Clients use it so that writes made through one client are seen by all others.
+     */
+    public static PeerStateManager shared(final Storage storage) {
+        return SHARED_MANAGERS.getUnchecked(storage);
+    }
+
+    /**
+     * Starts ruling out peers without key material with a {@link PeerStateFilter} instead of asking
+     * the storage. The filter is populated from the storage once, on the given executor, and does
+     * not rule out anything before that has finished. Calling this again has no effect.
+     *
+     * <p>The filter only learns about peer states written through this manager. Enable it only if
+     * every write to the storage goes through this manager, that is the storage is not written to
+     * directly or by another process. A peer written to by anyone else would be treated as having
+     * no key material.
+     */
+    public void enablePeerStateFilter(final Executor executor) {
+        final PeerStateFilter peerStateFilter;
+        synchronized (this) {
+            if (this.peerStateFilter != null) {
+                return;
+            }
+            peerStateFilter = new PeerStateFilter();
+            this.peerStateFilter = peerStateFilter;
+        }
+        executor.execute(() -> populate(peerStateFilter));
+    }
+
+    private void populate(final PeerStateFilter peerStateFilter) {
+        try {
+            peerStateFilter.populate(storage);
+        } catch (final UnsupportedOperationException e) {
+            LOGGER.debug("Storage does not support populating the peer state filter", e);
+        } catch (final RuntimeException e) {
+            LOGGER.warn("Unable to populate peer state filter", e);
+        }
     }
 
     public void processAutocryptHeaders(
             final String from,
             final Instant effectiveDate,
             final Collection<String> autocryptHeaders) {
-        if (storage.updateLastSeen(Addresses.normalize(from), effectiveDate)) {
+        final PeerStateUpdate peerStateUpdate;
+        try {
+            peerStateUpdate =
+                    PeerStateUpdate.builder(from, effectiveDate).addAll(autocryptHeaders).build();
+        } catch (final IllegalStateException e) {
+            final String peer = Addresses.normalize(from);
+            storage.updateLastSeen(peer, effectiveDate);
+            invalidateRecommendation(peer);
+            return;
+        }
+        if (publicKeyRingCache.isSuitableForEncryption(peerStateUpdate.getKeyData())) {
+            storage.updateLastSeenAndAutocrypt(
+                    peerStateUpdate.getFrom(),
+                    peerStateUpdate.getEffectiveDate(),
+                    peerStateUpdate.getKeyData(),
+                    publicKeyRingCache.getKeyMetadata(peerStateUpdate.getKeyData()),
+                    peerStateUpdate.getEncryptionPreference());
+            addToFilter(peerStateUpdate.getFrom());
+        } else {
+            storage.updateLastSeen(peerStateUpdate.getFrom(), effectiveDate);
+        }
+        invalidateRecommendation(peerStateUpdate.getFrom());
+    }
+
+    /**
+     * Processes the Autocrypt headers of many messages at once. This produces the same peer states
+     * as processing each message individually (in any order) but is considerably cheaper when
+     * ingesting an entire mailbox. Messages are grouped by their normalized from address. For each
+     * peer only the newest message carrying a valid Autocrypt header is parsed and validated; older
+     * messages only contribute to last_seen. This usually results in a single storage write per
+     * peer.
+     *
+     * @param messages The messages to process
+     * @param cryptoExecutor Executor used to parse and validate the keys of different peers in
+     *     parallel
+     * @param ioExecutor Executor used to write the resulting updates to the storage
+     */
+    public ListenableFuture<Void> processAutocryptHeaders(
+            final Collection<IncomingMessage> messages,
+            final ListeningExecutorService cryptoExecutor,
+            final ListeningExecutorService ioExecutor) {
+        final ListMultimap<String, IncomingMessage> messagesByPeer =
+                MultimapBuilder.hashKeys().arrayListValues().build();
+        for (final IncomingMessage message : messages) {
+            messagesByPeer.put(Addresses.normalize(message.getFrom()), message);
+        }
+        final ImmutableList.Builder<ListenableFuture<Void>> futures = ImmutableList.builder();
+        for (final Map.Entry<String, List<IncomingMessage>> entry :
+                Multimaps.asMap(messagesByPeer).entrySet()) {
+            final String peer = entry.getKey();
+            final List<IncomingMessage> peerMessages = entry.getValue();
+            final ListenableFuture<Optional<PeerStateUpdate>> updateFuture =
+                    Futures.submit(() -> findNewestValidUpdate(peer, peerMessages), cryptoExecutor);
+            futures.add(
+                    Futures.transform(
+                            updateFuture,
+                            update -> {
+                                apply(peer, lastSeen(peerMessages), update);
+                                return null;
+                            },
+                            ioExecutor));
+        }
+        return Futures.whenAllSucceed(futures.build())
+                .call(() -> null, MoreExecutors.directExecutor());
+    }
+
+    private Optional<PeerStateUpdate> findNewestValidUpdate(
+            final String peer, final List<IncomingMessage> messages) {
+        final List<IncomingMessage> newestFirst =
+                Ordering.natural()
+                        .onResultOf(IncomingMessage::getEffectiveDate)
+                        .reverse()
+                        .sortedCopy(messages);
+        for (final IncomingMessage message : newestFirst) {
+            if (message.getAutocryptHeaders().isEmpty()) {
+                continue;
+            }
             final PeerStateUpdate peerStateUpdate;
             try {
                 peerStateUpdate =
-                        PeerStateUpdate.builder(from, effectiveDate)
-                                .addAll(autocryptHeaders)
+                        PeerStateUpdate.builder(peer, message.getEffectiveDate())
+                                .addAll(message.getAutocryptHeaders())
                                 .build();
             } catch (final IllegalStateException e) {
-                return;
+                continue;
             }
-            final PGPPublicKeyRing publicKeyRing =
-                    PGPKeyRings.readPublicKeyRing(peerStateUpdate.getKeyData());
-            if (PGPKeyRings.isSuitableForEncryption(publicKeyRing)) {
-                storage.updateAutocrypt(
-                        peerStateUpdate.getFrom(),
-                        peerStateUpdate.getEffectiveDate(),
-                        peerStateUpdate.getKeyData(),
-                        peerStateUpdate.getEncryptionPreference());
+            if (publicKeyRingCache.isSuitableForEncryption(peerStateUpdate.getKeyData())) {
+                return Optional.of(peerStateUpdate);
             }
         }
+        return Optional.absent();
+    }
+
+    private static Instant lastSeen(final List<IncomingMessage> messages) {
+        return Collections.max(Lists.transform(messages, IncomingMessage::getEffectiveDate));
+    }
+
+    private void apply(
+            final String peer,
+            final Instant lastSeen,
+            final Optional<PeerStateUpdate> optionalPeerStateUpdate) {
+        if (optionalPeerStateUpdate.isPresent()) {
+            final PeerStateUpdate peerStateUpdate = optionalPeerStateUpdate.get();
+            // newer messages without (valid) Autocrypt header still count towards last_seen
+            storage.updateLastSeenAndAutocrypt(
+                    peer,
+                    peerStateUpdate.getEffectiveDate(),
+                    lastSeen,
+                    peerStateUpdate.getKeyData(),
+                    publicKeyRingCache.getKeyMetadata(peerStateUpdate.getKeyData()),
+                    peerStateUpdate.getEncryptionPreference());
+            addToFilter(peer);
+        } else {
+            storage.updateLastSeen(peer, lastSeen);
+        }
+        invalidateRecommendation(peer);
     }
 
     public void processGossipHeader(
             final Collection<String> recipients, final Collection<GossipUpdate> gossipUpdates) {
         for (final GossipUpdate gossipUpdate : gossipUpdates) {
             if (recipients.contains(gossipUpdate.getFrom())) {
-                final PGPPublicKeyRing publicKeyRing =
-                        PGPKeyRings.readPublicKeyRing(gossipUpdate.getKeyData());
-                if (PGPKeyRings.isSuitableForEncryption(publicKeyRing)) {
+                if (publicKeyRingCache.isSuitableForEncryption(gossipUpdate.getKeyData())) {
                     storage.updateGossip(
                             gossipUpdate.getFrom(),
                             gossipUpdate.getEffectiveDate(),
-                            gossipUpdate.getKeyData());
+                            gossipUpdate.getKeyData(),
+                            publicKeyRingCache.getKeyMetadata(gossipUpdate.getKeyData()));
+                    addToFilter(gossipUpdate.getFrom());
+                    invalidateRecommendation(gossipUpdate.getFrom());
                 }
             } else {
                 LOGGER.warn(
@@ -70,25 +278,222 @@ public class PeerStateManager {
         }
     }
 
+    /**
+     * @return false if the peer is known to have no key material; true if it might have some. The
+     *     answer is given from memory without touching the storage. Always true unless the {@link
+     *     #enablePeerStateFilter(Executor) filter has been enabled}.
+     */
+    public boolean mightHaveKeyMaterial(final String address) {
+        return !excluded(Addresses.normalize(address));
+    }
+
     public PreRecommendation getPreliminaryRecommendation(final String address) {
-        final PeerState peerState = storage.getPeerState(Addresses.normalize(address));
+        final String peer = Addresses.normalize(address);
+        if (excluded(peer)) {
+            return PreRecommendation.DISABLE;
+        }
+        final PreRecommendation cached = recommendationCache.getIfPresent(peer);
+        if (cached != null && !cached.isExpiredAt(Instant.now())) {
+            return cached;
+        }
+        final long generation = writeGenerations.get(stripe(peer));
+        return cache(peer, generation, getPreliminaryRecommendation(storage.getPeerState(peer)));
+    }
+
+    /**
+     * Computes the preliminary recommendations for many recipients at once. Cached recommendations
+     * and peers ruled out by the {@link PeerStateFilter} are answered right away. All other peer
+     * states are fetched with a single call to {@link Storage#getPeerStates(Collection)}.
+     * Recommendations for peers whose keys are already in the {@link PublicKeyRingCache} are
+     * computed right away; only peers with keys that still need to be parsed are handed to the
+     * crypto executor.
+     *
+     * @param addresses The recipients
+     * @param cryptoExecutor Executor used to parse the keys of different peers in parallel
+     * @param ioExecutor Executor used to read the peer states from the storage
+     * @return The preliminary recommendations in the iteration order of the addresses
+     */
+    public ListenableFuture<List<PreRecommendation>> getPreliminaryRecommendations(
+            final Collection<String> addresses,
+            final ListeningExecutorService cryptoExecutor,
+            final ListeningExecutorService ioExecutor) {
+        final List<String> normalizedAddresses =
+                ImmutableList.copyOf(Collections2.transform(addresses, Addresses::normalize));
+        final long[] generations = writeGenerations();
+        final Instant now = Instant.now();
+        final Map<String, PreRecommendation> cached =
+                Maps.filterValues(
+                        recommendationCache.getAllPresent(normalizedAddresses),
+                        preRecommendation -> !preRecommendation.isExpiredAt(now));
+        final List<String> missingAddresses =
+                ImmutableList.copyOf(
+                        Collections2.filter(
+                                normalizedAddresses,
+                                address -> !cached.containsKey(address) && !excluded(address)));
+        final ListenableFuture<Map<String, PeerState>> peerStatesFuture;
+        if (missingAddresses.isEmpty()) {
+            peerStatesFuture = Futures.immediateFuture(Collections.emptyMap());
+        } else {
+            peerStatesFuture =
+                    Futures.submit(() -> storage.getPeerStates(missingAddresses), ioExecutor);
+        }
+        return Futures.transformAsync(
+                peerStatesFuture,
+                peerStates -> {
+                    final List<ListenableFuture<PreRecommendation>> futures =
+                            new ArrayList<>(normalizedAddresses.size());
+                    for (final String address : normalizedAddresses) {
+                        final PreRecommendation cachedPreRecommendation = cached.get(address);
+                        if (cachedPreRecommendation != null) {
+                            futures.add(Futures.immediateFuture(cachedPreRecommendation));
+                            continue;
+                        }
+                        if (excluded(address)) {
+                            futures.add(Futures.immediateFuture(PreRecommendation.DISABLE));
+                            continue;
+                        }
+                        final PeerState peerState = peerStates.get(address);
+                        final Callable<PreRecommendation> callable =
+                                () ->
+                                        cache(
+                                                address,
+                                                generations[stripe(address)],
+                                                getPreliminaryRecommendation(peerState));
+                        if (isCached(peerState)) {
+                            futures.add(Futures.immediateFuture(callable.call()));
+                        } else {
+                            futures.add(Futures.submit(callable, cryptoExecutor));
+                        }
+                    }
+                    return Futures.allAsList(futures);
+                },
+                MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Stores a freshly computed recommendation, replacing an expired one, unless the peer state
+     * might have been written while it was computed.
+     *
+     * @param generation The write generation of the stripe of the address observed before the peer
+     *     state was read
+     */
+    private PreRecommendation cache(
+            final String address,
+            final long generation,
+            final PreRecommendation preRecommendation) {
+        final int stripe = stripe(address);
+        if (writeGenerations.get(stripe) != generation) {
+            return preRecommendation;
+        }
+        recommendationCache.put(address, preRecommendation);
+        if (writeGenerations.get(stripe) != generation) {
+            // a write raced with the put and might have invalidated before it
+            recommendationCache.asMap().remove(address, preRecommendation);
+        }
+        return preRecommendation;
+    }
+
+    private long[] writeGenerations() {
+        final long[] generations = new long[WRITE_GENERATION_STRIPES];
+        for (int i = 0; i < generations.length; ++i) {
+            generations[i] = writeGenerations.get(i);
+        }
+        return generations;
+    }
+
+    private static int stripe(final String address) {
+        return Math.floorMod(address.hashCode(), WRITE_GENERATION_STRIPES);
+    }
+
+    private boolean excluded(final String address) {
+        final PeerStateFilter peerStateFilter = this.peerStateFilter;
+        return peerStateFilter != null && peerStateFilter.excludes(address);
+    }
+
+    private void addToFilter(final String address) {
+        final PeerStateFilter peerStateFilter = this.peerStateFilter;
+        if (peerStateFilter != null) {
+            peerStateFilter.put(address);
+        }
+    }
+
+    /** Must be called after every write to the peer state of an address. */
+    private void invalidateRecommendation(final String address) {
+        writeGenerations.incrementAndGet(stripe(address));
+        recommendationCache.invalidate(address);
+    }
+
+    private boolean isCached(final PeerState peerState) {
+        return peerState == null
+                || (isCached(peerState.getPublicKey(), peerState.getPublicKeyMetadata())
+                        && isCached(peerState.getGossipKey(), peerState.getGossipKeyMetadata()));
+    }
+
+    private boolean isCached(final byte[] keyData, final KeyMetadata keyMetadata) {
+        return keyMetadata != null || publicKeyRingCache.isCached(keyData);
+    }
+
+    /**
+     * Decides based on the key metadata that has been stored along with the keys. The keys
+     * themselves are only parsed once the public key of the recommendation is requested. Keys
+     * without metadata (stored by a storage that does not support it) are parsed right away and
+     * judged by the same rules.
+     */
+    private PreRecommendation getPreliminaryRecommendation(final PeerState peerState) {
         if (peerState == null) {
             return PreRecommendation.DISABLE;
         }
-        final PGPPublicKeyRing publicKey = PGPKeyRings.readPublicKeyRing(peerState.getPublicKey());
-        final PGPPublicKeyRing gossipKey = PGPKeyRings.readPublicKeyRing(peerState.getGossipKey());
-        if (publicKey == null && gossipKey == null) {
+        final Instant now = Instant.now();
+        final byte[] publicKey = peerState.getPublicKey();
+        final KeyMetadata publicKeyMetadata =
+                keyMetadata(publicKey, peerState.getPublicKeyMetadata());
+        final byte[] gossipKey = peerState.getGossipKey();
+        final KeyMetadata gossipKeyMetadata =
+                keyMetadata(gossipKey, peerState.getGossipKeyMetadata());
+        final boolean isPublicKeyUsable = isUsable(publicKeyMetadata, now);
+        final boolean isGossipKeyUsable = isUsable(gossipKeyMetadata, now);
+        if (!isPublicKeyUsable && !isGossipKeyUsable) {
             return PreRecommendation.DISABLE;
         }
-        if (publicKey == null) {
-            return PreRecommendation.discourage(gossipKey);
+        if (!isPublicKeyUsable) {
+            return PreRecommendation.discourage(
+                    publicKeyRing(gossipKey), expirationTime(gossipKeyMetadata));
         }
         final Instant lastSeen = peerState.getLastSeen();
         final Instant autocryptTimestamp = peerState.getAutocryptTimestamp();
         if (autocryptTimestamp.isAfter(lastSeen.minus(AUTOCRYPT_HEADER_EXPIRY))) {
-            return PreRecommendation.available(publicKey, peerState.getEncryptionPreference());
+            return PreRecommendation.available(
+                    publicKeyRing(publicKey),
+                    peerState.getEncryptionPreference(),
+                    expirationTime(publicKeyMetadata));
         } else {
-            return PreRecommendation.discourage(publicKey);
+            return PreRecommendation.discourage(
+                    publicKeyRing(publicKey), expirationTime(publicKeyMetadata));
         }
     }
+
+    /**
+     * @return The stored metadata or, for keys stored without it, the metadata derived from parsing
+     *     the key. Null if there is no key or it can not be parsed.
+     */
+    private KeyMetadata keyMetadata(final byte[] keyData, final KeyMetadata keyMetadata) {
+        if (keyData == null || keyData.length == 0) {
+            return null;
+        }
+        return keyMetadata != null ? keyMetadata : publicKeyRingCache.getKeyMetadata(keyData);
+    }
+
+    private static boolean isUsable(final KeyMetadata keyMetadata, final Instant now) {
+        return keyMetadata != null
+                && keyMetadata.isEncryptionCapable()
+                && !keyMetadata.isExpiredAt(now);
+    }
+
+    private Supplier<PGPPublicKeyRing> publicKeyRing(final byte[] keyData) {
+        return () -> publicKeyRingCache.readPublicKeyRing(keyData);
+    }
+
+    private static Instant expirationTime(final KeyMetadata keyMetadata) {
+        return keyMetadata == null ? null : keyMetadata.getExpirationTime();
+    }
 }
@@ -1,6 +1,7 @@
 package rs.ltt.autocrypt.client.state;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -9,6 +10,7 @@ import rs.ltt.autocrypt.client.Addresses;
 import rs.ltt.autocrypt.client.header.AutocryptHeader;
 import rs.ltt.autocrypt.client.header.EncryptionPreference;
 
+@SuppressWarnings("Guava")
 public class PeerStateUpdate extends AbstractAutocryptUpdate {
 
     private final EncryptionPreference encryptionPreference;
@@ -17,7 +19,7 @@ public class PeerStateUpdate extends AbstractAutocryptUpdate {
             final String from,
             final Instant effectiveDate,
             final EncryptionPreference encryptionPreference,
-            final byte[] keyData) {
+            final Supplier<byte[]> keyData) {
         super(from, effectiveDate, keyData);
         this.encryptionPreference = encryptionPreference;
     }
@@ -52,14 +54,14 @@ public class PeerStateUpdate extends AbstractAutocryptUpdate {
         }
 
         public Builder add(final String header) {
-            final AutocryptHeader autocryptHeader;
-            try {
-                autocryptHeader = AutocryptHeader.parse(header);
-            } catch (final Exception e) {
-                // improperly formatted headers will just be ignored
-                return this;
+            // improperly formatted headers and headers for other addresses will just be ignored
+            final AutocryptHeader autocryptHeader =
+                    AutocryptHeader.parse(
+                            header, address -> this.from.equals(Addresses.normalize(address)));
+            if (autocryptHeader != null) {
+                this.headers.add(autocryptHeader);
             }
-            return add(autocryptHeader);
+            return this;
         }
 
         public Builder add(final AutocryptHeader header) {
@@ -86,7 +88,7 @@ public class PeerStateUpdate extends AbstractAutocryptUpdate {
                     from,
                     effectiveDate,
                     autocryptHeader.getEncryptionPreference(),
-                    autocryptHeader.getKeyData());
+                    autocryptHeader::getKeyData);
         }
     }
 }
@@ -1,48 +1,100 @@
 package rs.ltt.autocrypt.client.state;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import java.time.Instant;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import rs.ltt.autocrypt.client.Decision;
 import rs.ltt.autocrypt.client.header.EncryptionPreference;
 
+/**
+ * The preliminary recommendation for a single peer. The public key is only parsed when it is first
+ * requested, which usually is when an encryption stream is built. A key that turns out to be
+ * unparseable at that point turns the decision into {@link Decision#DISABLE}.
+ */
+@SuppressWarnings("Guava")
 public class PreRecommendation {
 
     public static final PreRecommendation DISABLE =
-            new PreRecommendation(Decision.DISABLE, null, EncryptionPreference.NO_PREFERENCE);
+            new PreRecommendation(
+                    Decision.DISABLE,
+                    Suppliers.ofInstance(null),
+                    EncryptionPreference.NO_PREFERENCE,
+                    null);
     private final Decision decision;
-    private final PGPPublicKeyRing publicKey;
+    private final Supplier<PGPPublicKeyRing> publicKey;
     private final EncryptionPreference encryptionPreference;
+    private final Instant expirationTime;
+    private volatile boolean unparseable = false;
 
     private PreRecommendation(
             final Decision decision,
-            final PGPPublicKeyRing publicKey,
-            final EncryptionPreference encryptionPreference) {
+            final Supplier<PGPPublicKeyRing> publicKey,
+            final EncryptionPreference encryptionPreference,
+            final Instant expirationTime) {
         this.decision = decision;
-        this.publicKey = publicKey;
+        this.publicKey =
+                Suppliers.memoize(
+                        () -> {
+                            final PGPPublicKeyRing publicKeyRing = publicKey.get();
+                            if (publicKeyRing == null && decision != Decision.DISABLE) {
+                                this.unparseable = true;
+                            }
+                            return publicKeyRing;
+                        });
         this.encryptionPreference = encryptionPreference;
+        this.expirationTime = expirationTime;
     }
 
     public static PreRecommendation discourage(final PGPPublicKeyRing publicKey) {
         Preconditions.checkNotNull(publicKey);
+        return discourage(Suppliers.ofInstance(publicKey), null);
+    }
+
+    static PreRecommendation discourage(
+            final Supplier<PGPPublicKeyRing> publicKey, final Instant expirationTime) {
+        Preconditions.checkNotNull(publicKey);
         return new PreRecommendation(
-                Decision.DISCOURAGE, publicKey, EncryptionPreference.NO_PREFERENCE);
+                Decision.DISCOURAGE, publicKey, EncryptionPreference.NO_PREFERENCE, expirationTime);
     }
 
     public static PreRecommendation available(
             final PGPPublicKeyRing publicKey, final EncryptionPreference encryptionPreference) {
         Preconditions.checkNotNull(publicKey);
-        return new PreRecommendation(Decision.AVAILABLE, publicKey, encryptionPreference);
+        return available(Suppliers.ofInstance(publicKey), encryptionPreference, null);
     }
 
+    static PreRecommendation available(
+            final Supplier<PGPPublicKeyRing> publicKey,
+            final EncryptionPreference encryptionPreference,
+            final Instant expirationTime) {
+        Preconditions.checkNotNull(publicKey);
+        return new PreRecommendation(
+                Decision.AVAILABLE, publicKey, encryptionPreference, expirationTime);
+    }
+
+    /**
+     * @return The decision based on the key metadata or {@link Decision#DISABLE} if the key could
+     *     not be parsed once it was requested
+     */
     public Decision getDecision() {
-        return decision;
+        return unparseable ? Decision.DISABLE : decision;
     }
 
     public PGPPublicKeyRing getPublicKey() {
-        return publicKey;
+        return publicKey.get();
     }
 
     public EncryptionPreference getEncryptionPreference() {
         return encryptionPreference;
     }
+
+    /**
+     * @return true if the recommended key has expired and the recommendation needs to be
+     *     reevaluated
+     */
+    boolean isExpiredAt(final Instant instant) {
+        return expirationTime != null && !instant.isBefore(expirationTime);
+    }
 }
@@ -1,27 +1,45 @@
 package rs.ltt.autocrypt.client.storage;
 
+import com.google.common.collect.Maps;
 import java.time.Instant;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import rs.ltt.autocrypt.client.header.EncryptionPreference;
 
+/**
+ * A {@link Storage} that keeps all state in memory. All operations are thread safe. Updates to a
+ * peer are performed atomically per address; updates to different peers do not block each other.
+ */
 public class InMemoryStorage implements Storage {
 
-    private final HashMap<String, PeerState> peers = new HashMap<>();
-    private final HashMap<String, AccountState> accounts = new HashMap<>();
+    private final ConcurrentMap<String, PeerState> peers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AccountState> accounts = new ConcurrentHashMap<>();
 
     @Override
     public boolean updateLastSeen(final String address, final Instant effectiveDate) {
-        final PeerState currentPeerState = peers.get(address);
-        if (currentPeerState != null
-                && effectiveDate.isBefore(currentPeerState.autocryptTimestamp)) {
-            return false;
-        }
-        if (currentPeerState == null) {
-            peers.put(address, PeerState.fresh(effectiveDate));
-        } else if (effectiveDate.isAfter(currentPeerState.lastSeen)) {
-            peers.put(address, currentPeerState.updateLastSeen(effectiveDate));
-        }
-        return true;
+        final AtomicBoolean updated = new AtomicBoolean(false);
+        peers.compute(
+                address,
+                (key, currentPeerState) -> {
+                    if (currentPeerState == null) {
+                        updated.set(true);
+                        return PeerState.fresh(effectiveDate);
+                    }
+                    if (effectiveDate.isBefore(currentPeerState.autocryptTimestamp)) {
+                        return currentPeerState;
+                    }
+                    updated.set(true);
+                    if (effectiveDate.isAfter(currentPeerState.lastSeen)) {
+                        return currentPeerState.updateLastSeen(effectiveDate);
+                    }
+                    return currentPeerState;
+                });
+        return updated.get();
     }
 
     @Override
@@ -30,26 +48,94 @@ public class InMemoryStorage implements Storage {
             final Instant effectiveDate,
             final byte[] publicKey,
             final EncryptionPreference preference) {
-        final PeerState currentPeerState = peers.get(address);
-        if (currentPeerState == null) {
-            return;
-        }
-        peers.put(address, currentPeerState.updateAutocrypt(effectiveDate, publicKey, preference));
+        peers.computeIfPresent(
+                address,
+                (key, currentPeerState) ->
+                        currentPeerState.updateAutocrypt(
+                                effectiveDate, publicKey, null, preference));
+    }
+
+    @Override
+    public boolean updateLastSeenAndAutocrypt(
+            final String address,
+            final Instant effectiveDate,
+            final byte[] publicKey,
+            final EncryptionPreference preference) {
+        return updateLastSeenAndAutocrypt(address, effectiveDate, publicKey, null, preference);
+    }
+
+    @Override
+    public boolean updateLastSeenAndAutocrypt(
+            final String address,
+            final Instant effectiveDate,
+            final byte[] publicKey,
+            final KeyMetadata publicKeyMetadata,
+            final EncryptionPreference preference) {
+        return updateLastSeenAndAutocrypt(
+                address, effectiveDate, effectiveDate, publicKey, publicKeyMetadata, preference);
+    }
+
+    @Override
+    public boolean updateLastSeenAndAutocrypt(
+            final String address,
+            final Instant effectiveDate,
+            final Instant lastSeen,
+            final byte[] publicKey,
+            final KeyMetadata publicKeyMetadata,
+            final EncryptionPreference preference) {
+        final AtomicBoolean updated = new AtomicBoolean(false);
+        peers.compute(
+                address,
+                (key, currentPeerState) -> {
+                    if (currentPeerState == null) {
+                        updated.set(true);
+                        return PeerState.fresh(lastSeen)
+                                .updateAutocrypt(
+                                        effectiveDate, publicKey, publicKeyMetadata, preference);
+                    }
+                    PeerState peerState = currentPeerState;
+                    if (!effectiveDate.isBefore(peerState.autocryptTimestamp)) {
+                        updated.set(true);
+                        peerState =
+                                peerState.updateAutocrypt(
+                                        effectiveDate, publicKey, publicKeyMetadata, preference);
+                    }
+                    if (lastSeen.isAfter(peerState.lastSeen)) {
+                        peerState = peerState.updateLastSeen(lastSeen);
+                    }
+                    return peerState;
+                });
+        return updated.get();
     }
 
     @Override
     public boolean updateGossip(
             final String address, final Instant effectiveDate, final byte[] publicKey) {
-        final PeerState currentPeerState = peers.get(address);
-        if (currentPeerState != null && effectiveDate.isBefore(currentPeerState.gossipTimestamp)) {
-            return false;
-        }
-        if (currentPeerState == null) {
-            peers.put(address, PeerState.freshGossip(effectiveDate, publicKey));
-        } else {
-            peers.put(address, currentPeerState.updateGossip(effectiveDate, publicKey));
-        }
-        return true;
+        return updateGossip(address, effectiveDate, publicKey, null);
+    }
+
+    @Override
+    public boolean updateGossip(
+            final String address,
+            final Instant effectiveDate,
+            final byte[] publicKey,
+            final KeyMetadata gossipKeyMetadata) {
+        final AtomicBoolean updated = new AtomicBoolean(false);
+        peers.compute(
+                address,
+                (key, currentPeerState) -> {
+                    if (currentPeerState == null) {
+                        updated.set(true);
+                        return PeerState.freshGossip(effectiveDate, publicKey, gossipKeyMetadata);
+                    }
+                    if (effectiveDate.isBefore(currentPeerState.gossipTimestamp)) {
+                        return currentPeerState;
+                    }
+                    updated.set(true);
+                    return currentPeerState.updateGossip(
+                            effectiveDate, publicKey, gossipKeyMetadata);
+                });
+        return updated.get();
     }
 
     @Override
@@ -57,6 +143,32 @@ public class InMemoryStorage implements Storage {
         return this.peers.get(address);
     }
 
+    @Override
+    public Map<String, rs.ltt.autocrypt.client.storage.PeerState> getPeerStates(
+            final Collection<String> addresses) {
+        final Map<String, rs.ltt.autocrypt.client.storage.PeerState> peerStates =
+                Maps.newHashMapWithExpectedSize(addresses.size());
+        for (final String address : addresses) {
+            final PeerState peerState = this.peers.get(address);
+            if (peerState != null) {
+                peerStates.put(address, peerState);
+            }
+        }
+        return peerStates;
+    }
+
+    @Override
+    public Collection<String> getAddressesWithKeyMaterial() {
+        final List<String> addresses = new ArrayList<>();
+        for (final Map.Entry<String, PeerState> entry : this.peers.entrySet()) {
+            final PeerState peerState = entry.getValue();
+            if (peerState.publicKey != null || peerState.gossipKey != null) {
+                addresses.add(entry.getKey());
+            }
+        }
+        return addresses;
+    }
+
     @Override
     public AccountState getAccountState(final String userId) {
         return this.accounts.get(userId);
@@ -71,23 +183,29 @@ public class InMemoryStorage implements Storage {
         private final Instant lastSeen;
         private final Instant autocryptTimestamp;
         private final byte[] publicKey;
+        private final KeyMetadata publicKeyMetadata;
         private final EncryptionPreference encryptionPreference;
         private final Instant gossipTimestamp;
         private final byte[] gossipKey;
+        private final KeyMetadata gossipKeyMetadata;
 
         private PeerState(
                 Instant lastSeen,
                 Instant autocryptTimestamp,
                 byte[] publicKey,
+                KeyMetadata publicKeyMetadata,
                 EncryptionPreference encryptionPreference,
                 Instant gossipTimestamp,
-                byte[] gossipKey) {
+                byte[] gossipKey,
+                KeyMetadata gossipKeyMetadata) {
             this.lastSeen = lastSeen;
             this.autocryptTimestamp = autocryptTimestamp;
             this.publicKey = publicKey;
+            this.publicKeyMetadata = publicKeyMetadata;
             this.encryptionPreference = encryptionPreference;
             this.gossipTimestamp = gossipTimestamp;
             this.gossipKey = gossipKey;
+            this.gossipKeyMetadata = gossipKeyMetadata;
         }
 
         private static PeerState fresh(final Instant lastSeen) {
@@ -95,20 +213,26 @@ public class InMemoryStorage implements Storage {
                     lastSeen,
                     Instant.EPOCH,
                     null,
+                    null,
                     EncryptionPreference.NO_PREFERENCE,
                     Instant.EPOCH,
+                    null,
                     null);
         }
 
         private static PeerState freshGossip(
-                final Instant gossipTimestamp, final byte[] publicKey) {
+                final Instant gossipTimestamp,
+                final byte[] publicKey,
+                final KeyMetadata gossipKeyMetadata) {
             return new PeerState(
                     Instant.EPOCH,
                     Instant.EPOCH,
                     null,
+                    null,
                     EncryptionPreference.NO_PREFERENCE,
                     gossipTimestamp,
-                    publicKey);
+                    publicKey,
+                    gossipKeyMetadata);
         }
 
         public PeerState updateLastSeen(final Instant lastSeen) {
@@ -116,32 +240,42 @@ public class InMemoryStorage implements Storage {
                     lastSeen,
                     this.autocryptTimestamp,
                     this.publicKey,
+                    this.publicKeyMetadata,
                     this.encryptionPreference,
                     this.gossipTimestamp,
-                    this.gossipKey);
+                    this.gossipKey,
+                    this.gossipKeyMetadata);
         }
 
         public PeerState updateAutocrypt(
                 final Instant autocryptTimestamp,
                 final byte[] publicKey,
+                final KeyMetadata publicKeyMetadata,
                 final EncryptionPreference preference) {
             return new PeerState(
                     this.lastSeen,
                     autocryptTimestamp,
                     publicKey,
+                    publicKeyMetadata,
                     preference,
                     this.gossipTimestamp,
-                    this.gossipKey);
+                    this.gossipKey,
+                    this.gossipKeyMetadata);
         }
 
-        public PeerState updateGossip(final Instant gossipTimestamp, final byte[] publicKey) {
+        public PeerState updateGossip(
+                final Instant gossipTimestamp,
+                final byte[] publicKey,
+                final KeyMetadata gossipKeyMetadata) {
             return new PeerState(
                     this.lastSeen,
                     this.autocryptTimestamp,
                     this.publicKey,
+                    this.publicKeyMetadata,
                     this.encryptionPreference,
                     gossipTimestamp,
-                    publicKey);
+                    publicKey,
+                    gossipKeyMetadata);
         }
 
         @Override
@@ -173,5 +307,15 @@ public class InMemoryStorage implements Storage {
         public EncryptionPreference getEncryptionPreference() {
             return this.encryptionPreference;
         }
+
+        @Override
+        public KeyMetadata getPublicKeyMetadata() {
+            return this.publicKeyMetadata;
+        }
+
+        @Override
+        public KeyMetadata getGossipKeyMetadata() {
+            return this.gossipKeyMetadata;
+        }
     }
 }
@@ -0,0 +1,41 @@
+package rs.ltt.autocrypt.client.storage;
+
+import java.time.Instant;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+
+/**
+ * Facts about a public key that are derived once when the key is stored. They allow a peer’s key to
+ * be judged without parsing it.
+ */
+@Value.Immutable
+public interface KeyMetadata {
+
+    /**
+     * @return The fingerprint of the primary key
+     */
+    String getFingerprint();
+
+    /**
+     * @return true if the key has a subkey that can be used to encrypt communication
+     */
+    boolean isEncryptionCapable();
+
+    Instant getCreationTime();
+
+    /**
+     * @return The time after which the key can no longer be used to encrypt: the latest expiration
+     *     of its encryption subkeys or the expiration of the primary key if that comes first. Null
+     *     if it does not expire.
+     */
+    @Nullable Instant getExpirationTime();
+
+    /**
+     * The creation time is deliberately not checked. A key that appears to have been created in the
+     * future is more likely the result of clock skew than of a bogus key.
+     */
+    default boolean isExpiredAt(final Instant instant) {
+        final Instant expirationTime = getExpirationTime();
+        return expirationTime != null && !instant.isBefore(expirationTime);
+    }
+}
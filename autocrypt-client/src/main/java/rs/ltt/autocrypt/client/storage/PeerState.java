@@ -16,4 +16,18 @@ public interface PeerState {
     byte[] getGossipKey();
 
     EncryptionPreference getEncryptionPreference();
+
+    /**
+     * @return Metadata derived from the public key when it was stored or null if it is unknown
+     */
+    default KeyMetadata getPublicKeyMetadata() {
+        return null;
+    }
+
+    /**
+     * @return Metadata derived from the gossip key when it was stored or null if it is unknown
+     */
+    default KeyMetadata getGossipKeyMetadata() {
+        return null;
+    }
 }
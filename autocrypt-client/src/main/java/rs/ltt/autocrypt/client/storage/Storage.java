@@ -1,6 +1,9 @@
 package rs.ltt.autocrypt.client.storage;
 
 import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import rs.ltt.autocrypt.client.header.EncryptionPreference;
 
 public interface Storage {
@@ -37,6 +40,79 @@ public interface Storage {
             final byte[] publicKey,
             final EncryptionPreference preference);
 
+    /**
+     * Steps 1-2 and 4-6 of the update process applied as one step. This is used when the message
+     * contained a valid Autocrypt header. The default implementation falls back to {@link
+     * #updateLastSeen(String, Instant)} followed by {@link #updateAutocrypt(String, Instant,
+     * byte[], EncryptionPreference)}. Implementations should override this to apply both updates
+     * atomically and, if applicable, in a single round-trip.
+     *
+     * @param address The peer’s from address
+     * @param effectiveDate The effective date of the message (sending time or the time of receipt
+     *     if that date is in the future)
+     * @param publicKey The key-data from the Autocrypt header
+     * @param preference The prefer-encrypt value of the Autocrypt header
+     * @return true if the effective data was more recent than the current autocrypt_timestamp and
+     *     the Autocrypt header has been applied
+     */
+    default boolean updateLastSeenAndAutocrypt(
+            final String address,
+            final Instant effectiveDate,
+            final byte[] publicKey,
+            final EncryptionPreference preference) {
+        if (updateLastSeen(address, effectiveDate)) {
+            updateAutocrypt(address, effectiveDate, publicKey, preference);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Same as {@link #updateLastSeenAndAutocrypt(String, Instant, byte[], EncryptionPreference)}
+     * but additionally stores metadata derived from the public key. It is returned by {@link
+     * PeerState#getPublicKeyMetadata()} and saves parsing the key when making a recommendation. The
+     * default implementation discards the metadata.
+     *
+     * @param publicKeyMetadata Metadata derived from the key-data
+     */
+    default boolean updateLastSeenAndAutocrypt(
+            final String address,
+            final Instant effectiveDate,
+            final byte[] publicKey,
+            final KeyMetadata publicKeyMetadata,
+            final EncryptionPreference preference) {
+        return updateLastSeenAndAutocrypt(address, effectiveDate, publicKey, preference);
+    }
+
+    /**
+     * Same as {@link #updateLastSeenAndAutocrypt(String, Instant, byte[], KeyMetadata,
+     * EncryptionPreference)} but additionally accounts for newer messages of the same peer that did
+     * not carry a (valid) Autocrypt header. This is used when many messages are processed at once.
+     * Steps 1-2 are applied to lastSeen and steps 1-2 and 4-6 to the effective date of the message
+     * with the Autocrypt header. The default implementation falls back to two calls.
+     * Implementations should override this to apply both updates atomically and in a single
+     * round-trip.
+     *
+     * @param effectiveDate The effective date of the message with the Autocrypt header
+     * @param lastSeen The effective date of the newest message of the peer. Not before the
+     *     effective date.
+     */
+    default boolean updateLastSeenAndAutocrypt(
+            final String address,
+            final Instant effectiveDate,
+            final Instant lastSeen,
+            final byte[] publicKey,
+            final KeyMetadata publicKeyMetadata,
+            final EncryptionPreference preference) {
+        final boolean updated =
+                updateLastSeenAndAutocrypt(
+                        address, effectiveDate, publicKey, publicKeyMetadata, preference);
+        if (lastSeen.isAfter(effectiveDate)) {
+            updateLastSeen(address, lastSeen);
+        }
+        return updated;
+    }
+
     /**
      * Steps 2-4 from the gossip update process. 2) If peers[gossip-addr].gossip_timestamp is more
      * recent than the message’s effective date, then the update process terminates. 3) Set
@@ -51,8 +127,55 @@ public interface Storage {
      */
     boolean updateGossip(final String address, final Instant effectiveData, final byte[] publicKey);
 
+    /**
+     * Same as {@link #updateGossip(String, Instant, byte[])} but additionally stores metadata
+     * derived from the gossip key. It is returned by {@link PeerState#getGossipKeyMetadata()}. The
+     * default implementation discards the metadata.
+     *
+     * @param gossipKeyMetadata Metadata derived from the key-data
+     */
+    default boolean updateGossip(
+            final String address,
+            final Instant effectiveData,
+            final byte[] publicKey,
+            final KeyMetadata gossipKeyMetadata) {
+        return updateGossip(address, effectiveData, publicKey);
+    }
+
     PeerState getPeerState(final String address);
 
+    /**
+     * Looks up the peer states of many addresses at once. The default implementation calls {@link
+     * #getPeerState(String)} for every address. Implementations should override this to fetch all
+     * peers in a single round-trip.
+     *
+     * @param addresses The (normalized) addresses of the peers
+     * @return The peer states by address. Addresses without a peer state are omitted.
+     */
+    default Map<String, PeerState> getPeerStates(final Collection<String> addresses) {
+        final Map<String, PeerState> peerStates = new HashMap<>();
+        for (final String address : addresses) {
+            final PeerState peerState = getPeerState(address);
+            if (peerState != null) {
+                peerStates.put(address, peerState);
+            }
+        }
+        return peerStates;
+    }
+
+    /**
+     * Lists all peers that have a public key or a gossip key. This is used to populate a {@link
+     * rs.ltt.autocrypt.client.state.PeerStateFilter} on startup. Implementing this is optional; the
+     * default implementation throws.
+     *
+     * @return The addresses of all peers with key material
+     * @throws UnsupportedOperationException if the storage can not enumerate its peers
+     */
+    default Collection<String> getAddressesWithKeyMaterial() {
+        throw new UnsupportedOperationException(
+                getClass().getSimpleName() + " can not enumerate peers");
+    }
+
     AccountState getAccountState(final String userId);
 
     void setAccountState(final String userId, final AccountState accountState);
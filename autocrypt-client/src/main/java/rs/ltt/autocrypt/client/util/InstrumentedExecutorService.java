@@ -0,0 +1,130 @@
+package rs.ltt.autocrypt.client.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AbstractListeningExecutorService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An executor service that keeps track of how many tasks are waiting to be executed, how many are
+ * currently being executed and how many have been completed. All work is delegated to the wrapped
+ * executor service.
+ */
+@SuppressWarnings("UnstableApiUsage")
+public class InstrumentedExecutorService extends AbstractListeningExecutorService {
+
+    private final ExecutorService delegate;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+
+    private InstrumentedExecutorService(final ExecutorService delegate) {
+        this.delegate = Preconditions.checkNotNull(delegate);
+    }
+
+    /**
+     * @param executorService The executor service to keep track of
+     * @return The executor service itself if it is already instrumented, otherwise a wrapper around
+     *     it
+     */
+    public static InstrumentedExecutorService of(final ExecutorService executorService) {
+        if (executorService instanceof InstrumentedExecutorService) {
+            return (InstrumentedExecutorService) executorService;
+        }
+        return new InstrumentedExecutorService(executorService);
+    }
+
+    /**
+     * Creates a fixed size thread pool of daemon threads.
+     *
+     * @param threads The number of threads in the pool
+     * @param nameFormat A {@link String#format(String, Object...)}-compatible format string used to
+     *     name the threads
+     */
+    public static InstrumentedExecutorService newFixedThreadPool(
+            final int threads, final String nameFormat) {
+        Preconditions.checkArgument(threads > 0, "Number of threads must be positive");
+        return of(
+                Executors.newFixedThreadPool(
+                        threads,
+                        new ThreadFactoryBuilder()
+                                .setNameFormat(nameFormat)
+                                .setDaemon(true)
+                                .build()));
+    }
+
+    @Override
+    public void execute(final Runnable runnable) {
+        Preconditions.checkNotNull(runnable);
+        queued.incrementAndGet();
+        try {
+            delegate.execute(
+                    () -> {
+                        queued.decrementAndGet();
+                        active.incrementAndGet();
+                        try {
+                            runnable.run();
+                        } finally {
+                            active.decrementAndGet();
+                            completed.incrementAndGet();
+                        }
+                    });
+        } catch (final RejectedExecutionException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of tasks that have been submitted but have not started yet
+     */
+    public int getQueuedTaskCount() {
+        return queued.get();
+    }
+
+    /**
+     * @return The number of tasks that are currently being executed
+     */
+    public int getActiveTaskCount() {
+        return active.get();
+    }
+
+    /**
+     * @return The number of tasks that have finished executing, regardless of their outcome
+     */
+    public long getCompletedTaskCount() {
+        return completed.get();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,81 @@
+package rs.ltt.autocrypt.client.util;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides access to virtual threads (Java 21+) while still compiling for and running on older Java
+ * versions. Availability is determined at runtime.
+ */
+public final class VirtualThreads {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final MethodHandle NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR =
+            findNewVirtualThreadPerTaskExecutor();
+
+    private VirtualThreads() {}
+
+    private static MethodHandle findNewVirtualThreadPerTaskExecutor() {
+        try {
+            return MethodHandles.publicLookup()
+                    .findStatic(
+                            Executors.class,
+                            "newVirtualThreadPerTaskExecutor",
+                            MethodType.methodType(ExecutorService.class));
+        } catch (final NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the running JVM supports virtual threads
+     */
+    public static boolean isAvailable() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * @return An executor service that starts a new virtual thread for each task
+     * @throws UnsupportedOperationException if the running JVM does not support virtual threads
+     */
+    public static ListeningExecutorService newVirtualThreadPerTaskExecutor() {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR == null) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads are not supported by this JVM");
+        }
+        final ExecutorService executorService;
+        try {
+            executorService = (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invokeExact();
+        } catch (final Throwable throwable) {
+            throw new IllegalStateException("Unable to create virtual thread executor", throwable);
+        }
+        return MoreExecutors.listeningDecorator(executorService);
+    }
+
+    /**
+     * Used by the client builders to resolve the executor for a stage that has not been configured
+     * explicitly.
+     *
+     * @param useVirtualThreads Whether virtual threads have been requested
+     * @param fallback The executor to use when virtual threads have not been requested or are not
+     *     available
+     */
+    public static ListeningExecutorService orFallback(
+            final boolean useVirtualThreads, final ListeningExecutorService fallback) {
+        if (useVirtualThreads) {
+            if (isAvailable()) {
+                return newVirtualThreadPerTaskExecutor();
+            }
+            LOGGER.warn("Virtual threads have been requested but are not supported by this JVM");
+        }
+        return fallback;
+    }
+}
@@ -1,5 +1,10 @@
 package rs.ltt.autocrypt.client;
 
+import com.google.common.base.Strings;
+import java.net.IDN;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Supplier;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -22,4 +27,62 @@ public class AddressesTest {
         Assertions.assertEquals("test", Addresses.normalize("Test"));
         Assertions.assertEquals("@test", Addresses.normalize("@test"));
     }
+
+    @Test
+    public void normalizedAddressIsReturnedAsIs() {
+        final String address = "test@example.com";
+        Assertions.assertSame(address, Addresses.normalize(address));
+    }
+
+    @Test
+    public void sameResultAsIdn() {
+        final String[] parts = {
+            "test",
+            "Test",
+            "@",
+            ".",
+            " ",
+            "\t",
+            "bücher",
+            "example",
+            "COM",
+            "é",
+            "\u3002",
+            "-",
+            Strings.repeat("a", 64)
+        };
+        final Random random = new Random(3);
+        for (int i = 0; i < 20_000; ++i) {
+            final StringBuilder input = new StringBuilder();
+            final int count = random.nextInt(8);
+            for (int j = 0; j < count; ++j) {
+                input.append(parts[random.nextInt(parts.length)]);
+            }
+            final String address = input.toString();
+            Assertions.assertEquals(
+                    outcome(() -> idnNormalize(address)),
+                    outcome(() -> Addresses.normalize(address)),
+                    address);
+        }
+    }
+
+    private static Object outcome(final Supplier<String> supplier) {
+        try {
+            return supplier.get();
+        } catch (final RuntimeException e) {
+            return e.getClass();
+        }
+    }
+
+    /** The normalization that was used before the fast path was introduced */
+    private static String idnNormalize(final String input) {
+        final String normalized = input.trim().toLowerCase(Locale.ROOT);
+        final int atPosition = normalized.lastIndexOf('@');
+        if (atPosition == -1) {
+            return normalized;
+        }
+        final String mailbox = normalized.substring(0, atPosition);
+        final String domain = IDN.toASCII(normalized.substring(atPosition + 1));
+        return String.format("%s@%s", mailbox, domain);
+    }
 }
@@ -0,0 +1,100 @@
+package rs.ltt.autocrypt.client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ComposeSessionTest {
+
+    private final Map<String, SettableFuture<Recommendation>> pending = new HashMap<>();
+    private final List<Decision> decisions = new ArrayList<>();
+
+    private ComposeSession newComposeSession() {
+        return new ComposeSession(this::resolve, decisions::add);
+    }
+
+    private ListenableFuture<Recommendation> resolve(final String address) {
+        final SettableFuture<Recommendation> future = SettableFuture.create();
+        pending.put(address, future);
+        return future;
+    }
+
+    private void complete(final String address, final Decision decision) {
+        pending.remove(address).set(new Recommendation(decision, null));
+    }
+
+    @Test
+    public void decisionFollowsRecipients() {
+        final ComposeSession composeSession = newComposeSession();
+        Assertions.assertEquals(Decision.DISABLE, composeSession.getDecision());
+        composeSession.addRecipient("alice@example.com");
+        Assertions.assertFalse(composeSession.isResolved());
+        complete("alice@example.com", Decision.ENCRYPT);
+        Assertions.assertTrue(composeSession.isResolved());
+        Assertions.assertEquals(Decision.ENCRYPT, composeSession.getDecision());
+        composeSession.addRecipient("bob@example.com");
+        complete("bob@example.com", Decision.DISCOURAGE);
+        Assertions.assertEquals(Decision.DISCOURAGE, composeSession.getDecision());
+        composeSession.addRecipient("carol@example.com");
+        complete("carol@example.com", Decision.DISABLE);
+        Assertions.assertEquals(Decision.DISABLE, composeSession.getDecision());
+        composeSession.removeRecipient("carol@example.com");
+        Assertions.assertEquals(Decision.DISCOURAGE, composeSession.getDecision());
+        composeSession.removeRecipient("bob@example.com");
+        Assertions.assertEquals(Decision.ENCRYPT, composeSession.getDecision());
+        composeSession.removeRecipient("alice@example.com");
+        Assertions.assertEquals(Decision.DISABLE, composeSession.getDecision());
+        Assertions.assertEquals(
+                Arrays.asList(
+                        Decision.ENCRYPT,
+                        Decision.DISCOURAGE,
+                        Decision.DISABLE,
+                        Decision.DISCOURAGE,
+                        Decision.ENCRYPT,
+                        Decision.DISABLE),
+                decisions);
+    }
+
+    @Test
+    public void onlyChangedRecipientIsResolved() {
+        final ComposeSession composeSession = newComposeSession();
+        composeSession.addRecipient("alice@example.com");
+        complete("alice@example.com", Decision.AVAILABLE);
+        composeSession.setRecipients(Arrays.asList("Alice@Example.com", "bob@example.com"));
+        Assertions.assertEquals(1, pending.size());
+        Assertions.assertTrue(pending.containsKey("bob@example.com"));
+        Assertions.assertEquals(2, composeSession.size());
+    }
+
+    @Test
+    public void duplicateRecipientIsCountedOnce() {
+        final ComposeSession composeSession = newComposeSession();
+        composeSession.addRecipient("alice@example.com");
+        composeSession.addRecipient("ALICE@example.com");
+        complete("alice@example.com", Decision.ENCRYPT);
+        composeSession.removeRecipient("alice@example.com");
+        Assertions.assertEquals(Decision.ENCRYPT, composeSession.getDecision());
+        composeSession.removeRecipient("alice@example.com");
+        Assertions.assertEquals(Decision.DISABLE, composeSession.getDecision());
+    }
+
+    @Test
+    public void removedRecipientIsIgnoredOnceResolved() {
+        final ComposeSession composeSession = newComposeSession();
+        composeSession.addRecipient("alice@example.com");
+        final SettableFuture<Recommendation> future = pending.get("alice@example.com");
+        composeSession.removeRecipient("alice@example.com");
+        composeSession.addRecipient("alice@example.com");
+        future.set(new Recommendation(Decision.DISABLE, null));
+        Assertions.assertTrue(future.isCancelled());
+        complete("alice@example.com", Decision.AVAILABLE);
+        Assertions.assertEquals(Decision.AVAILABLE, composeSession.getDecision());
+        Assertions.assertEquals(Arrays.asList(Decision.AVAILABLE), decisions);
+    }
+}
@@ -0,0 +1,57 @@
+package rs.ltt.autocrypt.client;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.pgpainless.PGPainless;
+
+public class PublicKeyRingCacheTest {
+
+    @Test
+    public void sameKeyDataIsParsedOnce()
+            throws PGPException, InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+        final PGPSecretKeyRing secretKeyRing =
+                PGPainless.generateKeyRing().simpleEcKeyRing("<test@example.com>");
+        final byte[] keyData = PGPKeyRings.keyData(PGPainless.extractCertificate(secretKeyRing));
+        final PublicKeyRingCache cache = new PublicKeyRingCache(1024 * 1024, Duration.ofHours(1));
+
+        final PGPPublicKeyRing first = cache.readPublicKeyRing(keyData);
+        final PGPPublicKeyRing second = cache.readPublicKeyRing(keyData.clone());
+
+        Assertions.assertNotNull(first);
+        Assertions.assertSame(first, second);
+        Assertions.assertTrue(cache.isSuitableForEncryption(keyData));
+        Assertions.assertEquals(1, cache.stats().missCount());
+        Assertions.assertEquals(2, cache.stats().hitCount());
+    }
+
+    @Test
+    public void invalidKeyData() {
+        final PublicKeyRingCache cache = new PublicKeyRingCache(1024 * 1024, Duration.ofHours(1));
+        Assertions.assertNull(cache.readPublicKeyRing(new byte[] {0x01, 0x02}));
+        Assertions.assertFalse(cache.isSuitableForEncryption(new byte[] {0x01, 0x02}));
+        Assertions.assertEquals(1, cache.stats().hitCount());
+    }
+
+    @Test
+    public void emptyKeyData() {
+        final PublicKeyRingCache cache = new PublicKeyRingCache(1024 * 1024, Duration.ofHours(1));
+        Assertions.assertNull(cache.readPublicKeyRing(null));
+        Assertions.assertFalse(cache.isSuitableForEncryption(new byte[0]));
+        Assertions.assertEquals(0, cache.stats().requestCount());
+    }
+
+    @Test
+    public void evictsByWeight() {
+        final PublicKeyRingCache cache = new PublicKeyRingCache(16, Duration.ofHours(1));
+        for (byte i = 0; i < 10; ++i) {
+            cache.readPublicKeyRing(new byte[] {i, 0x01, 0x02, 0x03});
+        }
+        Assertions.assertTrue(cache.size() <= 4);
+    }
+}
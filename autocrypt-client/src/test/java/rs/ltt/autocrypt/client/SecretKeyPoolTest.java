@@ -0,0 +1,137 @@
+package rs.ltt.autocrypt.client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rs.ltt.autocrypt.client.header.EncryptionPreference;
+import rs.ltt.autocrypt.client.storage.InMemoryStorage;
+
+public class SecretKeyPoolTest {
+
+    @Test
+    public void keyCanBeTakenOnce() throws ExecutionException, InterruptedException {
+        final SecretKeyPool pool = newDirectSecretKeyPool(2);
+        Assertions.assertTrue(pool.prepare("alice@example.com"));
+        Assertions.assertNotNull(pool.take("alice@example.com").get());
+        Assertions.assertNull(pool.take("alice@example.com").get());
+        Assertions.assertNull(pool.take("bob@example.com").get());
+    }
+
+    @Test
+    public void poolIsBounded() {
+        final SecretKeyPool pool = newDirectSecretKeyPool(1);
+        Assertions.assertTrue(pool.prepare("alice@example.com"));
+        Assertions.assertTrue(pool.prepare("alice@example.com"));
+        Assertions.assertFalse(pool.prepare("bob@example.com"));
+        Assertions.assertEquals(1, pool.size());
+        pool.take("alice@example.com");
+        Assertions.assertEquals(0, pool.size());
+        Assertions.assertTrue(pool.prepare("bob@example.com"));
+    }
+
+    @Test
+    public void takeWaitsForPendingKey() throws ExecutionException, InterruptedException {
+        final ListeningExecutorService executor =
+                MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            executor.execute(() -> Uninterruptibles.awaitUninterruptibly(latch));
+            final SecretKeyPool pool = new SecretKeyPool(2, 1000, executor);
+            Assertions.assertTrue(pool.prepare("alice@example.com"));
+            Assertions.assertNull(pool.take("alice@example.com", Duration.ofMillis(10)).get());
+            Assertions.assertEquals(0, pool.size());
+
+            Assertions.assertTrue(pool.prepare("alice@example.com"));
+            final ListenableFuture<PGPSecretKeyRing> future =
+                    pool.take("alice@example.com", Duration.ofSeconds(30));
+            Assertions.assertFalse(future.isDone());
+            latch.countDown();
+            Assertions.assertNotNull(future.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void keyIsNotGeneratedIfConditionFails()
+            throws ExecutionException, InterruptedException {
+        final SecretKeyPool pool = newDirectSecretKeyPool(2);
+        Assertions.assertTrue(pool.prepare("alice@example.com", () -> false));
+        Assertions.assertEquals(0, pool.size());
+        Assertions.assertNull(pool.take("alice@example.com").get());
+    }
+
+    @Test
+    public void concurrentPrepareDoesNotExceedCapacity() throws InterruptedException {
+        final int threads = 16;
+        final ListeningExecutorService executor =
+                MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads));
+        final ListeningExecutorService keyGenerator =
+                MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+        try {
+            final CountDownLatch block = new CountDownLatch(1);
+            keyGenerator.execute(() -> Uninterruptibles.awaitUninterruptibly(block));
+            final SecretKeyPool pool = new SecretKeyPool(4, 1000, keyGenerator);
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger accepted = new AtomicInteger();
+            for (int i = 0; i < threads; ++i) {
+                final String userId = String.format("user%d@example.com", i);
+                executor.execute(
+                        () -> {
+                            Uninterruptibles.awaitUninterruptibly(start);
+                            if (pool.prepare(userId)) {
+                                accepted.incrementAndGet();
+                            }
+                        });
+            }
+            start.countDown();
+            executor.shutdown();
+            Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            Assertions.assertEquals(4, accepted.get());
+            Assertions.assertEquals(4, pool.size());
+            block.countDown();
+        } finally {
+            executor.shutdownNow();
+            keyGenerator.shutdownNow();
+        }
+    }
+
+    @Test
+    public void clientClaimsPreparedKey() throws ExecutionException, InterruptedException {
+        final SecretKeyPool pool = newDirectSecretKeyPool(4);
+        final InMemoryStorage storage = new InMemoryStorage();
+        final SimpleAutocryptClient client =
+                SimpleAutocryptClient.builder()
+                        .userId("alice@example.com")
+                        .storage(storage)
+                        .defaultSettings(
+                                new DefaultSettings(true, EncryptionPreference.NO_PREFERENCE, pool))
+                        .build();
+        Assertions.assertEquals(1, pool.size());
+        client.ensureEverythingIsSetup().get();
+        Assertions.assertEquals(0, pool.size());
+        Assertions.assertNotNull(storage.getAccountState("alice@example.com"));
+
+        SimpleAutocryptClient.builder()
+                .userId("alice@example.com")
+                .storage(storage)
+                .defaultSettings(
+                        new DefaultSettings(true, EncryptionPreference.NO_PREFERENCE, pool))
+                .build();
+        Assertions.assertEquals(0, pool.size());
+    }
+
+    private static SecretKeyPool newDirectSecretKeyPool(final int capacity) {
+        return new SecretKeyPool(capacity, 1000, MoreExecutors.newDirectExecutorService());
+    }
+}
@@ -4,14 +4,24 @@ import static org.hamcrest.MatcherAssert.assertThat;
 
 import com.google.common.io.ByteStreams;
 import com.google.common.io.CharSource;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.hamcrest.CoreMatchers;
 import org.junit.jupiter.api.Assertions;
@@ -57,6 +67,32 @@ public class SimpleAutocryptClientTest {
                                 .build());
     }
 
+    @Test
+    public void injectedCryptoExecutorIsInstrumented()
+            throws ExecutionException, InterruptedException {
+        final ListeningExecutorService executorService =
+                MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+        final SimpleAutocryptClient autocryptClient =
+                SimpleAutocryptClient.builder()
+                        .userId("test@example.com")
+                        .cryptoExecutorService(executorService)
+                        .build();
+        autocryptClient.getCryptoExecutorService().submit(() -> {}).get();
+        executorService.shutdown();
+        Assertions.assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(
+                1, autocryptClient.getCryptoExecutorService().getCompletedTaskCount());
+    }
+
+    @Test
+    public void defaultCryptoExecutorIsShared() {
+        final SimpleAutocryptClient autocryptClient =
+                SimpleAutocryptClient.builder().userId("test@example.com").build();
+        Assertions.assertSame(
+                AbstractAutocryptClient.getInstrumentedCryptoExecutor(),
+                autocryptClient.getCryptoExecutorService());
+    }
+
     @Test
     public void automaticSecretKeyGeneration() throws ExecutionException, InterruptedException {
         final SimpleAutocryptClient autocryptClient =
@@ -147,6 +183,39 @@ public class SimpleAutocryptClientTest {
         Assertions.assertEquals(Decision.DISABLE, recommendationNobody.getDecision());
     }
 
+    @Test
+    public void peerStateFilterSeesWritesOfOtherClients()
+            throws ExecutionException, InterruptedException {
+        final Storage storage = new InMemoryStorage();
+        final SimpleAutocryptClient aliceClient =
+                SimpleAutocryptClient.builder()
+                        .userId("alice@example.com")
+                        .storage(storage)
+                        .usePeerStateFilter(true)
+                        .build();
+        final SimpleAutocryptClient ingestClient =
+                SimpleAutocryptClient.builder()
+                        .userId("alice@example.com")
+                        .storage(storage)
+                        .usePeerStateFilter(true)
+                        .build();
+        final SimpleAutocryptClient bobClient =
+                SimpleAutocryptClient.builder().userId("bob@example.com").build();
+
+        Assertions.assertEquals(
+                Decision.DISABLE,
+                aliceClient.getRecommendation("bob@example.com", false).get().getDecision());
+        ingestClient
+                .processAutocryptHeader(
+                        "bob@example.com",
+                        Instant.now(),
+                        bobClient.getAutocryptHeader().get().toHeaderValue())
+                .get();
+        Assertions.assertEquals(
+                Decision.AVAILABLE,
+                aliceClient.getRecommendation("bob@example.com", false).get().getDecision());
+    }
+
     @Test
     public void recommendationForDisabledAccount() throws ExecutionException, InterruptedException {
         final SimpleAutocryptClient aliceClient =
@@ -288,6 +357,55 @@ public class SimpleAutocryptClientTest {
         Assertions.assertEquals("Hello World!", resultStream.toString());
     }
 
+    @Test
+    public void headerReflectsChangedPreference() throws ExecutionException, InterruptedException {
+        final SimpleAutocryptClient aliceClient =
+                SimpleAutocryptClient.builder().userId("alice@example.com").build();
+        final AutocryptHeader before = aliceClient.getAutocryptHeader().get();
+        Assertions.assertEquals(
+                EncryptionPreference.NO_PREFERENCE, before.getEncryptionPreference());
+
+        aliceClient.setEncryptionPreference(EncryptionPreference.MUTUAL).get();
+
+        final AutocryptHeader after = aliceClient.getAutocryptHeader().get();
+        Assertions.assertEquals(EncryptionPreference.MUTUAL, after.getEncryptionPreference());
+        Assertions.assertArrayEquals(before.getKeyData(), after.getKeyData());
+    }
+
+    @Test
+    public void encryptTwiceToBob() throws IOException, ExecutionException, InterruptedException {
+        final SimpleAutocryptClient aliceClient =
+                SimpleAutocryptClient.builder().userId("alice@example.com").build();
+        final SimpleAutocryptClient bobClient =
+                SimpleAutocryptClient.builder().userId("bob@example.com").build();
+
+        aliceClient
+                .processAutocryptHeader(
+                        "bob@example.com",
+                        Instant.now(),
+                        bobClient.getAutocryptHeader().get().toHeaderValue())
+                .get();
+
+        for (int i = 0; i < 2; ++i) {
+            final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            try (final EncryptionStream encryptionStream =
+                    aliceClient
+                            .encrypt(
+                                    Collections.singleton("bob@example.com"), byteArrayOutputStream)
+                            .get()) {
+                encryptionStream.write("Hello World!".getBytes(StandardCharsets.UTF_8));
+            }
+            final ByteArrayOutputStream resultStream = new ByteArrayOutputStream();
+            try (final DecryptionStream decryptionStream =
+                    bobClient
+                            .decrypt(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()))
+                            .get()) {
+                ByteStreams.copy(decryptionStream, resultStream);
+            }
+            Assertions.assertEquals("Hello World!", resultStream.toString());
+        }
+    }
+
     @Test
     public void encryptToUnknown() {
         final SimpleAutocryptClient aliceClient =
@@ -304,4 +422,76 @@ public class SimpleAutocryptClientTest {
                                         .get());
         assertThat(exception.getCause(), CoreMatchers.instanceOf(IllegalArgumentException.class));
     }
+
+    @Test
+    public void concurrentInitializationGeneratesOneKey()
+            throws ExecutionException, InterruptedException {
+        final AtomicInteger accountStatesStored = new AtomicInteger();
+        final Storage storage =
+                new InMemoryStorage() {
+                    @Override
+                    public void setAccountState(
+                            final String userId, final AccountState accountState) {
+                        accountStatesStored.incrementAndGet();
+                        super.setAccountState(userId, accountState);
+                    }
+                };
+        final ListeningExecutorService executorService =
+                MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(8));
+        try {
+            final SimpleAutocryptClient autocryptClient =
+                    SimpleAutocryptClient.builder()
+                            .userId("test@example.com")
+                            .storage(storage)
+                            .ioExecutorService(executorService)
+                            .build();
+            final List<ListenableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; ++i) {
+                futures.add(autocryptClient.ensureEverythingIsSetup());
+            }
+            Futures.allAsList(futures).get();
+            Assertions.assertEquals(1, accountStatesStored.get());
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrentInitializationReadsStorageOnce()
+            throws ExecutionException, InterruptedException {
+        final AtomicInteger accountStatesRead = new AtomicInteger();
+        final Storage storage =
+                new InMemoryStorage() {
+                    @Override
+                    public AccountState getAccountState(final String userId) {
+                        accountStatesRead.incrementAndGet();
+                        return super.getAccountState(userId);
+                    }
+                };
+        storage.setAccountState(
+                "test@example.com",
+                ImmutableAccountState.builder()
+                        .secretKey(new byte[] {0x01})
+                        .isEnabled(true)
+                        .encryptionPreference(EncryptionPreference.NO_PREFERENCE)
+                        .build());
+        final ListeningExecutorService executorService =
+                MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(8));
+        try {
+            final SimpleAutocryptClient autocryptClient =
+                    SimpleAutocryptClient.builder()
+                            .userId("test@example.com")
+                            .storage(storage)
+                            .ioExecutorService(executorService)
+                            .build();
+            final List<ListenableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 32; ++i) {
+                futures.add(autocryptClient.ensureEverythingIsSetup());
+            }
+            Futures.allAsList(futures).get();
+            Assertions.assertEquals(1, accountStatesRead.get());
+        } finally {
+            executorService.shutdown();
+        }
+    }
 }
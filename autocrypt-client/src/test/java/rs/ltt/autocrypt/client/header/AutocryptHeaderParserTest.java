@@ -0,0 +1,200 @@
+package rs.ltt.autocrypt.client.header;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class AutocryptHeaderParserTest {
+
+    private static final String[] TOKENS = {
+        "addr",
+        "prefer-encrypt",
+        "keydata",
+        "_ignored",
+        "foo",
+        "mutual",
+        "nopreference",
+        "test@example.com",
+        "AAo",
+        "AAo=",
+        "mDMEXEcE6RYJKwYBBAHaRw8BAQdArjWwk3FAqyiFbFBKT4TzXcVBqPTB3gmzlC/Ub7O1u120F2F",
+        "=",
+        "==",
+        ";",
+        "; ",
+        "\"",
+        "\u00a0",
+        "\n ",
+        "\t",
+        " ",
+        "!",
+        "A",
+        "+/",
+    };
+
+    @Test
+    public void decodeFoldedKeyData() {
+        final String keyData =
+                "mDMEXEcE6RYJKwYBBAHaRw8BAQdArjWwk3FAqyiFbFBKT4TzXcVBqPTB3gmzlC/Ub7O1u1";
+        final String folded = "\n " + keyData.substring(0, 20) + "\r\n " + keyData.substring(20);
+        final AutocryptHeader header =
+                AutocryptHeaderParser.parse("addr=test@example.com; keydata=" + folded);
+        Assertions.assertArrayEquals(BaseEncoding.base64().decode(keyData), header.getKeyData());
+    }
+
+    @Test
+    public void decodeWithoutPadding() {
+        Assertions.assertArrayEquals(
+                new byte[] {0x00, 0x0a},
+                AutocryptHeaderParser.parse("addr=test@example.com; keydata=AAo").getKeyData());
+        Assertions.assertArrayEquals(
+                new byte[] {0x00},
+                AutocryptHeaderParser.parse("addr=test@example.com; keydata=AA= =").getKeyData());
+    }
+
+    @Test
+    public void keyDataIsNotShared() {
+        final AutocryptHeader header =
+                AutocryptHeaderParser.parse("addr=test@example.com; keydata=AAo=");
+        final byte[] keyData = header.getKeyData();
+        keyData[0] = 0x7f;
+        Assertions.assertArrayEquals(new byte[] {0x00, 0x0a}, header.getKeyData());
+    }
+
+    @Test
+    public void rejectInvalidKeyData() {
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> AutocryptHeaderParser.parse("addr=test@example.com; keydata=AAAAA"));
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> AutocryptHeaderParser.parse("addr=test@example.com; keydata=AA=A"));
+        Assertions.assertThrows(
+                IllegalArgumentException.class,
+                () -> AutocryptHeaderParser.parse("addr=test@example.com; keydata=AAäA"));
+    }
+
+    @Test
+    public void sameResultAsLegacyParser() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 50_000; ++i) {
+            final StringBuilder header = new StringBuilder();
+            final int tokens = random.nextInt(16);
+            for (int j = 0; j < tokens; ++j) {
+                header.append(TOKENS[random.nextInt(TOKENS.length)]);
+            }
+            assertSameResult(header.toString());
+        }
+    }
+
+    @Test
+    public void sameResultAsLegacyParserForWellFormedHeaders() {
+        final Random random = new Random(23);
+        for (int i = 0; i < 10_000; ++i) {
+            final byte[] keyData = new byte[random.nextInt(64)];
+            random.nextBytes(keyData);
+            final String encoded = BaseEncoding.base64().encode(keyData);
+            final StringBuilder folded = new StringBuilder();
+            for (int j = 0; j < encoded.length(); ++j) {
+                if (random.nextInt(8) == 0) {
+                    folded.append("\r\n ");
+                }
+                folded.append(encoded.charAt(j));
+            }
+            assertSameResult(
+                    String.format(
+                            "addr=peer%d@example.com; prefer-encrypt=mutual; keydata=%s",
+                            i, folded));
+        }
+    }
+
+    @Test
+    public void preScanRejectsSameHeadersAsFullParse() {
+        final Random random = new Random(5);
+        for (int i = 0; i < 50_000; ++i) {
+            final StringBuilder header = new StringBuilder();
+            final int tokens = random.nextInt(16);
+            for (int j = 0; j < tokens; ++j) {
+                header.append(TOKENS[random.nextInt(TOKENS.length)]);
+            }
+            final String value = header.toString();
+            final Object expected = outcome(() -> legacyParse(value));
+            final Object actual =
+                    outcome(() -> AutocryptHeader.parse(value, "test@example.com"::equals));
+            if (expected instanceof Class
+                    || !"test@example.com".equals(((List<?>) expected).get(0))) {
+                Assertions.assertNull(actual, value);
+            } else {
+                Assertions.assertEquals(expected, actual, value);
+            }
+        }
+    }
+
+    @Test
+    public void preScanRejectsMismatchingAddress() {
+        Assertions.assertNull(
+                AutocryptHeader.parse(
+                        "addr=bob@example.com; keydata=AAo=", "alice@example.com"::equals));
+        Assertions.assertNull(
+                AutocryptHeader.parse(
+                        "addr=alice@example.com; critical=1; keydata=AAo=",
+                        "alice@example.com"::equals));
+        Assertions.assertNotNull(
+                AutocryptHeader.parse(
+                        "addr=alice@example.com; _ignored=1; keydata=AAo=",
+                        "alice@example.com"::equals));
+    }
+
+    private static void assertSameResult(final String header) {
+        final Object expected = outcome(() -> legacyParse(header));
+        final Object actual = outcome(() -> AutocryptHeaderParser.parse(header));
+        Assertions.assertEquals(expected, actual, header);
+    }
+
+    private static Object outcome(final Parser parser) {
+        try {
+            final AutocryptHeader header = parser.parse();
+            if (header == null) {
+                return null;
+            }
+            return Arrays.asList(
+                    header.getAddress(),
+                    header.getEncryptionPreference(),
+                    Arrays.toString(header.getKeyData()));
+        } catch (final RuntimeException e) {
+            return e.getClass();
+        }
+    }
+
+    /** The attribute based parser that was used before {@link AutocryptHeaderParser}. */
+    private static AutocryptHeader legacyParse(final String header) {
+        final ImmutableAutocryptHeader.Builder builder = ImmutableAutocryptHeader.builder();
+        for (final Attribute attribute : Attribute.parse(header)) {
+            final String key = attribute.getKey();
+            final String value = attribute.getValue();
+            if ("addr".equals(key)) {
+                builder.address(attribute.getValue());
+            } else if ("prefer-encrypt".equals(key)) {
+                builder.encryptionPreference(EncryptionPreference.of(value));
+            } else if ("keydata".equals(key)) {
+                if (Strings.isNullOrEmpty(value)) {
+                    throw new IllegalArgumentException("Value for keydata can not be empty");
+                }
+                builder.keyData(
+                        BaseEncoding.base64().decode(CharMatcher.whitespace().removeFrom(value)));
+            } else if (key.charAt(0) != '_') {
+                throw new IllegalArgumentException(String.format("Unexpected attribute %s", key));
+            }
+        }
+        return builder.build();
+    }
+
+    private interface Parser {
+        AutocryptHeader parse();
+    }
+}
@@ -4,8 +4,15 @@ import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.startsWith;
 import static org.hamcrest.MatcherAssert.assertThat;
 
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Random;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPSecretKeyRing;
 import org.junit.jupiter.api.Assertions;
@@ -114,4 +121,137 @@ public class AutocryptHeaderTest {
         assertThat(headerValue, startsWith("addr=test@example.com;"));
         assertThat(headerValue, containsString("prefer-encrypt=nopreference"));
     }
+
+    @Test
+    public void headerValueMatchesBase64() {
+        final Random random = new Random(7);
+        for (int length = 0; length < 64; ++length) {
+            final byte[] keyData = new byte[length];
+            random.nextBytes(keyData);
+            final AutocryptHeader header =
+                    ImmutableAutocryptHeader.builder()
+                            .address("test@example.com")
+                            .encryptionPreference(EncryptionPreference.MUTUAL)
+                            .keyData(keyData)
+                            .build();
+            Assertions.assertEquals(
+                    "addr=test@example.com; prefer-encrypt=mutual; keydata="
+                            + BaseEncoding.base64().encode(keyData),
+                    header.toHeaderValue());
+        }
+    }
+
+    @Test
+    public void writeShortHeaderUnfolded() throws IOException {
+        final AutocryptHeader header = AutocryptHeader.parse("addr=test@example.com; keydata=AAo=");
+        final StringBuilder builder = new StringBuilder();
+        header.writeTo(builder, "Autocrypt-Gossip: ".length());
+        Assertions.assertEquals(header.toHeaderValue(), builder.toString());
+    }
+
+    @Test
+    public void writeFolded() throws IOException {
+        final byte[] keyData = new byte[1024];
+        new Random(11).nextBytes(keyData);
+        final AutocryptHeader header =
+                ImmutableAutocryptHeader.builder()
+                        .address("test@example.com")
+                        .encryptionPreference(EncryptionPreference.NO_PREFERENCE)
+                        .keyData(keyData)
+                        .build();
+        final String name = "Autocrypt-Gossip: ";
+        final StringBuilder builder = new StringBuilder(name);
+        header.writeTo(builder, name.length());
+        final String[] lines = builder.toString().split("\r\n", -1);
+        Assertions.assertTrue(lines.length > 1);
+        for (final String line : lines) {
+            Assertions.assertTrue(line.length() <= AutocryptHeader.MAX_LINE_LENGTH, line);
+        }
+        for (int i = 1; i < lines.length; ++i) {
+            Assertions.assertTrue(lines[i].startsWith(" "), lines[i]);
+        }
+        final AutocryptHeader parsed = AutocryptHeader.parse(builder.substring(name.length()));
+        Assertions.assertArrayEquals(keyData, parsed.getKeyData());
+        Assertions.assertEquals(header.getAddress(), parsed.getAddress());
+        Assertions.assertEquals(header.getEncryptionPreference(), parsed.getEncryptionPreference());
+    }
+
+    @Test
+    public void writeFoldedLongAddress() throws IOException {
+        final String address = Strings.repeat("a", 70) + "@example.com";
+        final AutocryptHeader header =
+                ImmutableAutocryptHeader.builder()
+                        .address(address)
+                        .encryptionPreference(EncryptionPreference.MUTUAL)
+                        .keyData(new byte[] {0x00, 0x0a})
+                        .build();
+        final StringBuilder builder = new StringBuilder();
+        header.writeTo(builder, 0);
+        Assertions.assertEquals(
+                "addr=" + address + ";\r\n prefer-encrypt=mutual; keydata=AAo=",
+                builder.toString());
+    }
+
+    @Test
+    public void writeFoldedRealisticKeyAtAnyColumn() throws IOException {
+        final AutocryptHeader header = realisticHeader();
+        for (int column = 0; column < AutocryptHeader.MAX_LINE_LENGTH; ++column) {
+            final String prefix = Strings.repeat("X", column);
+            final StringBuilder builder = new StringBuilder(prefix);
+            header.writeTo(builder, column);
+            assertFoldedLines(header, prefix, builder.toString());
+        }
+    }
+
+    @Test
+    public void writeFoldedIntoByteBuffer() throws IOException {
+        final AutocryptHeader header = realisticHeader();
+        final String name = "Autocrypt-Gossip: ";
+        final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        buffer.put(name.getBytes(StandardCharsets.US_ASCII));
+        header.writeTo(buffer, name.length());
+        buffer.flip();
+        final String written = StandardCharsets.US_ASCII.decode(buffer).toString();
+        final StringBuilder builder = new StringBuilder(name);
+        header.writeTo(builder, name.length());
+        Assertions.assertEquals(builder.toString(), written);
+        assertFoldedLines(header, name, written);
+    }
+
+    @Test
+    public void writeIntoByteBufferThatIsTooSmall() {
+        final AutocryptHeader header = realisticHeader();
+        Assertions.assertThrows(
+                BufferOverflowException.class, () -> header.writeTo(ByteBuffer.allocate(1024), 0));
+    }
+
+    /**
+     * A 3 KiB key roughly matches the size of an RSA 4096 certificate with a single user id and an
+     * encryption subkey.
+     */
+    private static AutocryptHeader realisticHeader() {
+        final byte[] keyData = new byte[3 * 1024];
+        new Random(13).nextBytes(keyData);
+        return ImmutableAutocryptHeader.builder()
+                .address("test@example.com")
+                .encryptionPreference(EncryptionPreference.MUTUAL)
+                .keyData(keyData)
+                .build();
+    }
+
+    private static void assertFoldedLines(
+            final AutocryptHeader header, final String prefix, final String written) {
+        final String[] lines = written.split("\r\n", -1);
+        Assertions.assertTrue(lines.length > 1);
+        for (final String line : lines) {
+            Assertions.assertTrue(line.length() <= AutocryptHeader.MAX_LINE_LENGTH, line);
+        }
+        for (int i = 1; i < lines.length; ++i) {
+            Assertions.assertTrue(lines[i].startsWith(" "), lines[i]);
+        }
+        final AutocryptHeader parsed = AutocryptHeader.parse(written.substring(prefix.length()));
+        Assertions.assertArrayEquals(header.getKeyData(), parsed.getKeyData());
+        Assertions.assertEquals(header.getAddress(), parsed.getAddress());
+        Assertions.assertEquals(header.getEncryptionPreference(), parsed.getEncryptionPreference());
+    }
 }
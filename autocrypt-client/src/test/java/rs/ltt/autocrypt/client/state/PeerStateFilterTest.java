@@ -0,0 +1,81 @@
+package rs.ltt.autocrypt.client.state;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import java.time.Instant;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rs.ltt.autocrypt.client.Decision;
+import rs.ltt.autocrypt.client.header.EncryptionPreference;
+import rs.ltt.autocrypt.client.storage.InMemoryStorage;
+import rs.ltt.autocrypt.client.storage.PeerState;
+
+public class PeerStateFilterTest {
+
+    private static final Instant EFFECTIVE_DATE = Instant.ofEpochSecond(1_500_000_000);
+
+    @Test
+    public void unpopulatedFilterExcludesNothing() {
+        final PeerStateFilter peerStateFilter = new PeerStateFilter();
+        Assertions.assertFalse(peerStateFilter.isPopulated());
+        Assertions.assertFalse(peerStateFilter.excludes("nobody@example.com"));
+    }
+
+    @Test
+    public void populateFromStorage() {
+        final InMemoryStorage storage = new InMemoryStorage();
+        storage.updateLastSeenAndAutocrypt(
+                "autocrypt@example.com",
+                EFFECTIVE_DATE,
+                new byte[] {0x01},
+                EncryptionPreference.MUTUAL);
+        storage.updateGossip("gossip@example.com", EFFECTIVE_DATE, new byte[] {0x01});
+        storage.updateLastSeen("plain@example.com", EFFECTIVE_DATE);
+
+        final PeerStateFilter peerStateFilter = new PeerStateFilter();
+        peerStateFilter.populate(storage);
+
+        Assertions.assertTrue(peerStateFilter.isPopulated());
+        Assertions.assertFalse(peerStateFilter.excludes("autocrypt@example.com"));
+        Assertions.assertFalse(peerStateFilter.excludes("gossip@example.com"));
+        Assertions.assertTrue(peerStateFilter.excludes("plain@example.com"));
+    }
+
+    @Test
+    public void filterIsDisabledByDefault() {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final PeerStateManager peerStateManager = new PeerStateManager(storage);
+
+        storage.updateGossip("gossip@example.com", EFFECTIVE_DATE, new byte[] {0x01});
+
+        Assertions.assertTrue(peerStateManager.mightHaveKeyMaterial("gossip@example.com"));
+        Assertions.assertTrue(peerStateManager.mightHaveKeyMaterial("nobody@example.com"));
+    }
+
+    @Test
+    public void excludedPeerIsNotLookedUp() {
+        final InMemoryStorage storage =
+                new InMemoryStorage() {
+                    @Override
+                    public PeerState getPeerState(final String address) {
+                        throw new AssertionError("Looked up " + address);
+                    }
+                };
+        storage.updateGossip("gossip@example.com", EFFECTIVE_DATE, new byte[] {0x01});
+        final PeerStateManager peerStateManager = new PeerStateManager(storage);
+        peerStateManager.enablePeerStateFilter(MoreExecutors.directExecutor());
+
+        Assertions.assertTrue(peerStateManager.mightHaveKeyMaterial("Gossip@Example.com"));
+        Assertions.assertFalse(peerStateManager.mightHaveKeyMaterial("Nobody@Example.com"));
+        Assertions.assertEquals(
+                Decision.DISABLE,
+                peerStateManager.getPreliminaryRecommendation("nobody@example.com").getDecision());
+    }
+
+    @Test
+    public void managerIsSharedPerStorage() {
+        final InMemoryStorage storage = new InMemoryStorage();
+        Assertions.assertSame(PeerStateManager.shared(storage), PeerStateManager.shared(storage));
+        Assertions.assertNotSame(
+                PeerStateManager.shared(storage), PeerStateManager.shared(new InMemoryStorage()));
+    }
+}
@@ -1,15 +1,23 @@
 package rs.ltt.autocrypt.client.state;
 
+import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import rs.ltt.autocrypt.client.Decision;
 import rs.ltt.autocrypt.client.header.EncryptionPreference;
+import rs.ltt.autocrypt.client.storage.ImmutableKeyMetadata;
 import rs.ltt.autocrypt.client.storage.InMemoryStorage;
+import rs.ltt.autocrypt.client.storage.KeyMetadata;
 import rs.ltt.autocrypt.client.storage.PeerState;
 import rs.ltt.autocrypt.client.storage.Storage;
 
@@ -85,6 +93,61 @@ public class PeerStateManagerTest {
         Assertions.assertNotNull(peerState.getPublicKey());
     }
 
+    @Test
+    public void processBatch() throws ExecutionException, InterruptedException {
+        final List<IncomingMessage> messages =
+                Arrays.asList(
+                        IncomingMessage.of(
+                                "test@example.com",
+                                EFFECTIVE_DATE_EARLIER_UPDATE,
+                                Collections.emptyList()),
+                        IncomingMessage.of(
+                                "Test@Example.com",
+                                EFFECTIVE_DATE_INITIAL,
+                                Collections.singleton(EXAMPLE_HEADER)),
+                        IncomingMessage.of(
+                                "test@example.com", EFFECTIVE_DATE_UPDATE, Collections.emptyList()),
+                        IncomingMessage.of(
+                                "other@example.com",
+                                EFFECTIVE_DATE_INITIAL,
+                                Collections.singleton(EXAMPLE_HEADER)));
+        final ListeningExecutorService executor = MoreExecutors.newDirectExecutorService();
+        peerStateManager.processAutocryptHeaders(messages, executor, executor).get();
+
+        final PeerState peerState = storage.getPeerState("test@example.com");
+        Assertions.assertNotNull(peerState);
+        Assertions.assertEquals(EFFECTIVE_DATE_UPDATE, peerState.getLastSeen());
+        Assertions.assertEquals(EFFECTIVE_DATE_INITIAL, peerState.getAutocryptTimestamp());
+        Assertions.assertNotNull(peerState.getPublicKey());
+
+        final PeerState otherPeerState = storage.getPeerState("other@example.com");
+        Assertions.assertNotNull(otherPeerState);
+        Assertions.assertEquals(EFFECTIVE_DATE_INITIAL, otherPeerState.getLastSeen());
+        Assertions.assertNull(otherPeerState.getPublicKey());
+    }
+
+    @Test
+    public void processBatchIgnoresStaleHeader() throws ExecutionException, InterruptedException {
+        peerStateManager.processAutocryptHeaders(
+                "test@example.com", EFFECTIVE_DATE_UPDATE, Collections.singleton(EXAMPLE_HEADER));
+        final ListeningExecutorService executor = MoreExecutors.newDirectExecutorService();
+        peerStateManager
+                .processAutocryptHeaders(
+                        Collections.singleton(
+                                IncomingMessage.of(
+                                        "test@example.com",
+                                        EFFECTIVE_DATE_INITIAL,
+                                        Collections.singleton(EXAMPLE_HEADER))),
+                        executor,
+                        executor)
+                .get();
+
+        final PeerState peerState = storage.getPeerState("test@example.com");
+        Assertions.assertNotNull(peerState);
+        Assertions.assertEquals(EFFECTIVE_DATE_UPDATE, peerState.getLastSeen());
+        Assertions.assertEquals(EFFECTIVE_DATE_UPDATE, peerState.getAutocryptTimestamp());
+    }
+
     @Test
     public void processGossip() {
         final List<GossipUpdate> updates =
@@ -130,10 +193,134 @@ public class PeerStateManagerTest {
                 peerStateManager.getPreliminaryRecommendation("test@example.com").getDecision());
     }
 
+    @Test
+    public void preliminaryRecommendationIsCachedUntilUpdate() {
+        peerStateManager.processAutocryptHeaders(
+                "test@example.com", EFFECTIVE_DATE_INITIAL, Collections.singleton(EXAMPLE_HEADER));
+
+        final PreRecommendation available =
+                peerStateManager.getPreliminaryRecommendation("test@example.com");
+        Assertions.assertEquals(Decision.AVAILABLE, available.getDecision());
+        Assertions.assertSame(
+                available, peerStateManager.getPreliminaryRecommendation("Test@Example.com"));
+
+        peerStateManager.processAutocryptHeaders(
+                "test@example.com",
+                EFFECTIVE_DATE_UPDATE.plus(Duration.ofDays(90)),
+                Collections.emptyList());
+
+        Assertions.assertEquals(
+                Decision.DISCOURAGE,
+                peerStateManager.getPreliminaryRecommendation("test@example.com").getDecision());
+    }
+
+    @Test
+    public void preliminaryRecommendationIsInvalidatedBySharedManager() {
+        final PeerStateManager peerStateManager = PeerStateManager.shared(storage);
+        Assertions.assertEquals(
+                Decision.DISABLE,
+                peerStateManager.getPreliminaryRecommendation("test@example.com").getDecision());
+
+        // for example a second client that works with the same storage
+        PeerStateManager.shared(storage)
+                .processAutocryptHeaders(
+                        "test@example.com",
+                        EFFECTIVE_DATE_INITIAL,
+                        Collections.singleton(EXAMPLE_HEADER));
+
+        Assertions.assertEquals(
+                Decision.AVAILABLE,
+                peerStateManager.getPreliminaryRecommendation("test@example.com").getDecision());
+    }
+
+    @Test
+    public void processHeaderStoresKeyMetadata() {
+        peerStateManager.processAutocryptHeaders(
+                "test@example.com", EFFECTIVE_DATE_INITIAL, Collections.singleton(EXAMPLE_HEADER));
+        final KeyMetadata keyMetadata =
+                storage.getPeerState("test@example.com").getPublicKeyMetadata();
+        Assertions.assertNotNull(keyMetadata);
+        Assertions.assertTrue(keyMetadata.isEncryptionCapable());
+    }
+
+    @Test
+    public void preliminaryRecommendationFromKeyMetadata() {
+        final KeyMetadata valid =
+                ImmutableKeyMetadata.builder()
+                        .fingerprint("0123456789ABCDEF")
+                        .isEncryptionCapable(true)
+                        .creationTime(EFFECTIVE_DATE_INITIAL)
+                        .build();
+        final KeyMetadata expired =
+                ImmutableKeyMetadata.builder()
+                        .from(valid)
+                        .expirationTime(EFFECTIVE_DATE_UPDATE)
+                        .build();
+        // the key data is never parsed as long as its metadata is known
+        storage.updateLastSeenAndAutocrypt(
+                "valid@example.com",
+                EFFECTIVE_DATE_INITIAL,
+                new byte[] {0x01},
+                valid,
+                EncryptionPreference.MUTUAL);
+        storage.updateLastSeenAndAutocrypt(
+                "expired@example.com",
+                EFFECTIVE_DATE_INITIAL,
+                new byte[] {0x01},
+                expired,
+                EncryptionPreference.MUTUAL);
+
+        final PreRecommendation preRecommendation =
+                peerStateManager.getPreliminaryRecommendation("valid@example.com");
+        Assertions.assertEquals(Decision.AVAILABLE, preRecommendation.getDecision());
+        Assertions.assertEquals(
+                EncryptionPreference.MUTUAL, preRecommendation.getEncryptionPreference());
+        Assertions.assertEquals(
+                Decision.DISABLE,
+                peerStateManager.getPreliminaryRecommendation("expired@example.com").getDecision());
+    }
+
+    @Test
+    public void expiredKeyWithoutMetadataIsNotRecommended() throws IOException {
+        // stored by a storage that does not keep key metadata
+        storage.updateLastSeenAndAutocrypt(
+                "expired@example.com",
+                EFFECTIVE_DATE_INITIAL,
+                Resources.toByteArray(Resources.getResource("keys/expired.pgp")),
+                EncryptionPreference.MUTUAL);
+
+        Assertions.assertEquals(
+                Decision.DISABLE,
+                peerStateManager.getPreliminaryRecommendation("expired@example.com").getDecision());
+    }
+
     @Test
     public void preliminaryRecommendationDisabled() {
         Assertions.assertEquals(
                 Decision.DISABLE,
                 peerStateManager.getPreliminaryRecommendation("nobody@example.com").getDecision());
     }
+
+    @Test
+    public void preliminaryRecommendations() throws ExecutionException, InterruptedException {
+        peerStateManager.processAutocryptHeaders(
+                "test@example.com", EFFECTIVE_DATE_INITIAL, Collections.singleton(EXAMPLE_HEADER));
+        final ListeningExecutorService executor = MoreExecutors.newDirectExecutorService();
+
+        final List<PreRecommendation> preRecommendations =
+                peerStateManager
+                        .getPreliminaryRecommendations(
+                                Arrays.asList(
+                                        "nobody@example.com",
+                                        "Test@Example.com",
+                                        "test@example.com"),
+                                executor,
+                                executor)
+                        .get();
+
+        Assertions.assertEquals(3, preRecommendations.size());
+        Assertions.assertEquals(Decision.DISABLE, preRecommendations.get(0).getDecision());
+        Assertions.assertEquals(Decision.AVAILABLE, preRecommendations.get(1).getDecision());
+        Assertions.assertEquals(Decision.AVAILABLE, preRecommendations.get(2).getDecision());
+    }
 }
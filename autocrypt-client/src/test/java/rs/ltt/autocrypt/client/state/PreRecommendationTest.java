@@ -0,0 +1,37 @@
+package rs.ltt.autocrypt.client.state;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import rs.ltt.autocrypt.client.Decision;
+import rs.ltt.autocrypt.client.Recommendation;
+import rs.ltt.autocrypt.client.header.EncryptionPreference;
+
+public class PreRecommendationTest {
+
+    @Test
+    public void unparseableKeyDisablesAvailable() {
+        final PreRecommendation preRecommendation =
+                PreRecommendation.available(() -> null, EncryptionPreference.MUTUAL, null);
+        final Recommendation recommendation = Recommendation.encrypt(preRecommendation);
+        Assertions.assertEquals(Decision.AVAILABLE, preRecommendation.getDecision());
+        Assertions.assertEquals(Decision.ENCRYPT, recommendation.getDecision());
+        Assertions.assertNull(recommendation.getPublicKey());
+        Assertions.assertEquals(Decision.DISABLE, preRecommendation.getDecision());
+        Assertions.assertEquals(Decision.DISABLE, recommendation.getDecision());
+    }
+
+    @Test
+    public void unparseableKeyDisablesDiscourage() {
+        final PreRecommendation preRecommendation = PreRecommendation.discourage(() -> null, null);
+        Assertions.assertEquals(Decision.DISCOURAGE, preRecommendation.getDecision());
+        Assertions.assertNull(preRecommendation.getPublicKey());
+        Assertions.assertEquals(Decision.DISABLE, preRecommendation.getDecision());
+    }
+
+    @Test
+    public void nullSupplierIsRejected() {
+        Assertions.assertThrows(
+                NullPointerException.class,
+                () -> PreRecommendation.available(null, EncryptionPreference.MUTUAL, null));
+    }
+}
@@ -0,0 +1,209 @@
+package rs.ltt.autocrypt.client.storage;
+
+import com.google.common.primitives.Longs;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import rs.ltt.autocrypt.client.header.EncryptionPreference;
+
+public class InMemoryStorageTest {
+
+    private static final int THREADS = 16;
+    private static final int UPDATES_PER_THREAD = 2_000;
+    private static final int ADDRESSES = 8;
+    private static final long EPOCH_SECOND_OFFSET = 1_500_000_000;
+
+    private ExecutorService executorService;
+
+    @BeforeEach
+    public void setupExecutor() {
+        this.executorService = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterEach
+    public void shutdownExecutor() {
+        this.executorService.shutdownNow();
+    }
+
+    @Test
+    public void lastSeenIsMonotonicUnderContention()
+            throws InterruptedException, ExecutionException {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final long[] maxima =
+                runConcurrently(
+                        (address, second) ->
+                                storage.updateLastSeen(address, Instant.ofEpochSecond(second)));
+        for (int i = 0; i < ADDRESSES; ++i) {
+            final PeerState peerState = storage.getPeerState(address(i));
+            Assertions.assertNotNull(peerState);
+            Assertions.assertEquals(Instant.ofEpochSecond(maxima[i]), peerState.getLastSeen());
+        }
+    }
+
+    @Test
+    public void gossipKeyMatchesGossipTimestampUnderContention()
+            throws InterruptedException, ExecutionException {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final long[] maxima =
+                runConcurrently(
+                        (address, second) ->
+                                storage.updateGossip(
+                                        address,
+                                        Instant.ofEpochSecond(second),
+                                        Longs.toByteArray(second)));
+        for (int i = 0; i < ADDRESSES; ++i) {
+            final PeerState peerState = storage.getPeerState(address(i));
+            Assertions.assertNotNull(peerState);
+            Assertions.assertEquals(
+                    Instant.ofEpochSecond(maxima[i]), peerState.getGossipTimestamp());
+            Assertions.assertArrayEquals(Longs.toByteArray(maxima[i]), peerState.getGossipKey());
+        }
+    }
+
+    @Test
+    public void autocryptKeyMatchesAutocryptTimestampUnderContention()
+            throws InterruptedException, ExecutionException {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final long[] maxima =
+                runConcurrently(
+                        (address, second) ->
+                                storage.updateLastSeenAndAutocrypt(
+                                        address,
+                                        Instant.ofEpochSecond(second),
+                                        Longs.toByteArray(second),
+                                        EncryptionPreference.MUTUAL));
+        for (int i = 0; i < ADDRESSES; ++i) {
+            final PeerState peerState = storage.getPeerState(address(i));
+            Assertions.assertNotNull(peerState);
+            Assertions.assertEquals(Instant.ofEpochSecond(maxima[i]), peerState.getLastSeen());
+            Assertions.assertEquals(
+                    Instant.ofEpochSecond(maxima[i]), peerState.getAutocryptTimestamp());
+            Assertions.assertArrayEquals(Longs.toByteArray(maxima[i]), peerState.getPublicKey());
+        }
+    }
+
+    @Test
+    public void staleAutocryptIsRejected() {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final Instant initial = Instant.ofEpochSecond(EPOCH_SECOND_OFFSET);
+        Assertions.assertTrue(
+                storage.updateLastSeenAndAutocrypt(
+                        "test@example.com",
+                        initial,
+                        new byte[] {0x01},
+                        EncryptionPreference.MUTUAL));
+        Assertions.assertFalse(
+                storage.updateLastSeenAndAutocrypt(
+                        "test@example.com",
+                        initial.minusSeconds(1),
+                        new byte[] {0x02},
+                        EncryptionPreference.NO_PREFERENCE));
+        final PeerState peerState = storage.getPeerState("test@example.com");
+        Assertions.assertEquals(initial, peerState.getLastSeen());
+        Assertions.assertArrayEquals(new byte[] {0x01}, peerState.getPublicKey());
+        Assertions.assertEquals(EncryptionPreference.MUTUAL, peerState.getEncryptionPreference());
+    }
+
+    @Test
+    public void newerLastSeenIsAppliedWithAutocrypt() {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final Instant initial = Instant.ofEpochSecond(EPOCH_SECOND_OFFSET);
+        Assertions.assertTrue(
+                storage.updateLastSeenAndAutocrypt(
+                        "test@example.com",
+                        initial,
+                        initial.plusSeconds(60),
+                        new byte[] {0x01},
+                        null,
+                        EncryptionPreference.MUTUAL));
+        Assertions.assertFalse(
+                storage.updateLastSeenAndAutocrypt(
+                        "test@example.com",
+                        initial.minusSeconds(1),
+                        initial.plusSeconds(120),
+                        new byte[] {0x02},
+                        null,
+                        EncryptionPreference.NO_PREFERENCE));
+        final PeerState peerState = storage.getPeerState("test@example.com");
+        Assertions.assertEquals(initial.plusSeconds(120), peerState.getLastSeen());
+        Assertions.assertEquals(initial, peerState.getAutocryptTimestamp());
+        Assertions.assertArrayEquals(new byte[] {0x01}, peerState.getPublicKey());
+        Assertions.assertEquals(EncryptionPreference.MUTUAL, peerState.getEncryptionPreference());
+    }
+
+    @Test
+    public void staleLastSeenIsRejected() {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final Instant initial = Instant.ofEpochSecond(EPOCH_SECOND_OFFSET);
+        Assertions.assertTrue(storage.updateLastSeen("test@example.com", initial));
+        storage.updateAutocrypt("test@example.com", initial, new byte[] {0x01}, null);
+        Assertions.assertFalse(storage.updateLastSeen("test@example.com", initial.minusSeconds(1)));
+        Assertions.assertTrue(storage.updateLastSeen("test@example.com", initial));
+    }
+
+    @Test
+    public void getPeerStatesOmitsUnknownPeers() {
+        final InMemoryStorage storage = new InMemoryStorage();
+        final Instant initial = Instant.ofEpochSecond(EPOCH_SECOND_OFFSET);
+        storage.updateLastSeen(address(0), initial);
+        storage.updateLastSeen(address(1), initial);
+        final Map<String, PeerState> peerStates =
+                storage.getPeerStates(Arrays.asList(address(0), address(1), address(2)));
+        Assertions.assertEquals(2, peerStates.size());
+        Assertions.assertSame(storage.getPeerState(address(0)), peerStates.get(address(0)));
+        Assertions.assertSame(storage.getPeerState(address(1)), peerStates.get(address(1)));
+        Assertions.assertFalse(peerStates.containsKey(address(2)));
+    }
+
+    private long[] runConcurrently(final Update update)
+            throws InterruptedException, ExecutionException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<long[]>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; ++t) {
+            final Callable<long[]> task =
+                    () -> {
+                        final long[] maxima = new long[ADDRESSES];
+                        final ThreadLocalRandom random = ThreadLocalRandom.current();
+                        start.await();
+                        for (int u = 0; u < UPDATES_PER_THREAD; ++u) {
+                            final int index = random.nextInt(ADDRESSES);
+                            final long second = EPOCH_SECOND_OFFSET + random.nextInt(1_000_000);
+                            update.apply(address(index), second);
+                            maxima[index] = Math.max(maxima[index], second);
+                        }
+                        return maxima;
+                    };
+            futures.add(executorService.submit(task));
+        }
+        start.countDown();
+        final long[] maxima = new long[ADDRESSES];
+        for (final Future<long[]> future : futures) {
+            final long[] threadMaxima = future.get();
+            for (int i = 0; i < ADDRESSES; ++i) {
+                maxima[i] = Math.max(maxima[i], threadMaxima[i]);
+            }
+        }
+        return maxima;
+    }
+
+    private static String address(final int index) {
+        return String.format("peer%d@example.com", index);
+    }
+
+    private interface Update {
+        void apply(final String address, final long second);
+    }
+}
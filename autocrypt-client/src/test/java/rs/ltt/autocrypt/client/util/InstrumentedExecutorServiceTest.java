@@ -0,0 +1,64 @@
+package rs.ltt.autocrypt.client.util;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class InstrumentedExecutorServiceTest {
+
+    @Test
+    public void countsQueuedActiveAndCompletedTasks()
+            throws InterruptedException, ExecutionException {
+        final InstrumentedExecutorService executorService =
+                InstrumentedExecutorService.newFixedThreadPool(1, "test-%d");
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<ListenableFuture<?>> futures = new ArrayList<>();
+        futures.add(
+                executorService.submit(
+                        () -> {
+                            started.countDown();
+                            release.await();
+                            return null;
+                        }));
+        for (int i = 0; i < 3; ++i) {
+            futures.add(executorService.submit(() -> {}));
+        }
+        Assertions.assertTrue(started.await(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, executorService.getActiveTaskCount());
+        Assertions.assertEquals(3, executorService.getQueuedTaskCount());
+        Assertions.assertEquals(0, executorService.getCompletedTaskCount());
+
+        release.countDown();
+        Futures.allAsList(futures).get();
+        executorService.shutdown();
+        Assertions.assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assertions.assertEquals(0, executorService.getActiveTaskCount());
+        Assertions.assertEquals(0, executorService.getQueuedTaskCount());
+        Assertions.assertEquals(4, executorService.getCompletedTaskCount());
+    }
+
+    @Test
+    public void instrumentedExecutorIsNotWrappedTwice() {
+        final InstrumentedExecutorService executorService =
+                InstrumentedExecutorService.newFixedThreadPool(1, "test-%d");
+        Assertions.assertSame(executorService, InstrumentedExecutorService.of(executorService));
+        executorService.shutdown();
+    }
+
+    @Test
+    public void rejectedTaskIsNotCounted() {
+        final InstrumentedExecutorService executorService =
+                InstrumentedExecutorService.newFixedThreadPool(1, "test-%d");
+        executorService.shutdown();
+        Assertions.assertThrows(RuntimeException.class, () -> executorService.execute(() -> {}));
+        Assertions.assertEquals(0, executorService.getQueuedTaskCount());
+    }
+}
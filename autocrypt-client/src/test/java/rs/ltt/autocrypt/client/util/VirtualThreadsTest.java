@@ -0,0 +1,29 @@
+package rs.ltt.autocrypt.client.util;
+
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.concurrent.ExecutionException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void fallbackWhenNotRequested() {
+        final ListeningExecutorService fallback = MoreExecutors.newDirectExecutorService();
+        Assertions.assertSame(fallback, VirtualThreads.orFallback(false, fallback));
+    }
+
+    @Test
+    public void virtualThreadsWhenRequested() throws ExecutionException, InterruptedException {
+        final ListeningExecutorService fallback = MoreExecutors.newDirectExecutorService();
+        final ListeningExecutorService executorService = VirtualThreads.orFallback(true, fallback);
+        if (VirtualThreads.isAvailable()) {
+            Assertions.assertNotSame(fallback, executorService);
+        } else {
+            Assertions.assertSame(fallback, executorService);
+        }
+        Assertions.assertEquals("result", executorService.submit(() -> "result").get());
+        executorService.shutdown();
+    }
+}
@@ -16,6 +16,7 @@ import java.time.Instant;
 import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Executor;
 import org.pgpainless.encryption_signing.EncryptionResult;
 import org.pgpainless.encryption_signing.EncryptionStream;
 import org.slf4j.Logger;
@@ -24,9 +25,11 @@ import rs.ltt.autocrypt.client.AbstractAutocryptClient;
 import rs.ltt.autocrypt.client.DefaultSettings;
 import rs.ltt.autocrypt.client.Recommendation;
 import rs.ltt.autocrypt.client.header.AutocryptHeader;
+import rs.ltt.autocrypt.client.state.IncomingMessage;
 import rs.ltt.autocrypt.client.storage.AccountState;
 import rs.ltt.autocrypt.client.storage.InMemoryStorage;
 import rs.ltt.autocrypt.client.storage.Storage;
+import rs.ltt.autocrypt.client.util.VirtualThreads;
 import rs.ltt.autocrypt.jmap.mime.BodyPartTuple;
 import rs.ltt.autocrypt.jmap.mime.MimeTransformer;
 import rs.ltt.jmap.common.entity.Email;
@@ -45,8 +48,25 @@ public class AutocryptClient extends AbstractAutocryptClient {
             String userId,
             Storage storage,
             ListeningExecutorService ioExecutorService,
+            ListeningExecutorService cryptoExecutorService,
             DefaultSettings defaultSettings) {
-        super(userId, storage, ioExecutorService, defaultSettings);
+        super(userId, storage, ioExecutorService, cryptoExecutorService, defaultSettings);
+    }
+
+    protected AutocryptClient(
+            String userId,
+            Storage storage,
+            ListeningExecutorService ioExecutorService,
+            ListeningExecutorService cryptoExecutorService,
+            DefaultSettings defaultSettings,
+            boolean usePeerStateFilter) {
+        super(
+                userId,
+                storage,
+                ioExecutorService,
+                cryptoExecutorService,
+                defaultSettings,
+                usePeerStateFilter);
     }
 
     public static Builder builder() {
@@ -96,26 +116,18 @@ public class AutocryptClient extends AbstractAutocryptClient {
         if (!accountState.isEnabled()) {
             return email;
         }
-        final AutocryptHeader header;
+        final String headerValue;
         final List<EmailAddress> from = email.getFrom();
         if (from != null && from.size() == 1) {
             final String address = from.get(0).getEmail();
             if (address == null) {
                 throw new IllegalArgumentException("EmailAddress did not contain valid address");
             }
-            header = this.getAutocryptHeader(address, accountState);
-        } else {
-            header = this.getAutocryptHeader(accountState);
-        }
-        return injectAutocryptHeader(email, header);
-    }
-
-    private static Email injectAutocryptHeader(final Email email, final AutocryptHeader header) {
-        if (header != null) {
-            return email.toBuilder().autocrypt(header.toHeaderValue()).build();
+            headerValue = this.getAutocryptHeaderValue(address, accountState);
         } else {
-            return email;
+            headerValue = this.getAutocryptHeaderValue(accountState);
         }
+        return email.toBuilder().autocrypt(headerValue).build();
     }
 
     public ListenableFuture<AutocryptHeader> getAutocryptHeader(final EmailAddress from) {
@@ -147,7 +159,7 @@ public class AutocryptClient extends AbstractAutocryptClient {
                             Closeables.close(outputStream, true);
                             return Futures.immediateFuture(encryptionResult);
                         },
-                        CRYPTO_EXECUTOR);
+                        getCryptoExecutorService());
     }
 
     private EncryptionResult writeMimeMessage(
@@ -162,16 +174,57 @@ public class AutocryptClient extends AbstractAutocryptClient {
     }
 
     public ListenableFuture<Void> processAutocryptHeader(final Email email) {
+        final IncomingMessage message = toIncomingMessage(email);
+        if (message == null) {
+            return Futures.immediateVoidFuture();
+        }
+        return this.processAutocryptHeaders(
+                message.getFrom(), message.getEffectiveDate(), message.getAutocryptHeaders());
+    }
+
+    /**
+     * @param executor Runs the processing instead of the IO executor of this client
+     */
+    public ListenableFuture<Void> processAutocryptHeader(
+            final Email email, final Executor executor) {
+        final IncomingMessage message = toIncomingMessage(email);
+        if (message == null) {
+            return Futures.immediateVoidFuture();
+        }
+        return this.processAutocryptHeaders(
+                message.getFrom(),
+                message.getEffectiveDate(),
+                message.getAutocryptHeaders(),
+                executor);
+    }
+
+    /**
+     * Processes the Autocrypt headers of many emails at once. This is considerably faster than
+     * calling {@link #processAutocryptHeader(Email)} for each email and should be used when
+     * ingesting an existing mailbox.
+     */
+    public ListenableFuture<Void> processAutocryptHeaders(final Collection<Email> emails) {
+        final ImmutableList.Builder<IncomingMessage> messages = ImmutableList.builder();
+        for (final Email email : emails) {
+            final IncomingMessage message = toIncomingMessage(email);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return this.processIncomingMessages(messages.build());
+    }
+
+    private static IncomingMessage toIncomingMessage(final Email email) {
         final List<String> autocryptHeaders = email.getAutocrypt();
         final List<EmailAddress> from = email.getFrom();
         if (autocryptHeaders == null || from == null || from.size() != 1) {
-            return Futures.immediateVoidFuture();
+            return null;
         }
         final String fromAddress =
                 Objects.requireNonNull(Iterables.getOnlyElement(from)).getEmail();
 
         if (fromAddress == null) {
-            return Futures.immediateVoidFuture();
+            return null;
         }
 
         final EmailBodyPart bodyStructure = email.getBodyStructure();
@@ -183,19 +236,21 @@ public class AutocryptClient extends AbstractAutocryptClient {
         } else if (contentType.is(MediaTypes.MULTIPART_REPORT)) {
             LOGGER.debug(
                     "E-mail was {}. Do not process AutocryptHeader", MediaTypes.MULTIPART_REPORT);
-            return Futures.immediateVoidFuture();
+            return null;
         }
 
         final Instant effectiveDate = EmailUtil.getEffectiveDate(email);
-        return this.processAutocryptHeaders(fromAddress, effectiveDate, autocryptHeaders);
+        return IncomingMessage.of(fromAddress, effectiveDate, autocryptHeaders);
     }
 
     public static class Builder {
 
         private String userId;
         private Storage storage = new InMemoryStorage();
-        private ListeningExecutorService ioExecutorService =
-                MoreExecutors.newDirectExecutorService();
+        private ListeningExecutorService ioExecutorService = null;
+        private ListeningExecutorService cryptoExecutorService = null;
+        private boolean useVirtualThreads = false;
+        private boolean usePeerStateFilter = false;
         private DefaultSettings defaultSettings = DefaultSettings.DEFAULT;
 
         private Builder() {}
@@ -218,6 +273,35 @@ public class AutocryptClient extends AbstractAutocryptClient {
             return this;
         }
 
+        public Builder cryptoExecutorService(final ListeningExecutorService cryptoExecutorService) {
+            Preconditions.checkArgument(
+                    cryptoExecutorService != null, "cryptoExecutorService must not be null");
+            this.cryptoExecutorService = cryptoExecutorService;
+            return this;
+        }
+
+        /**
+         * Run IO and crypto stages on virtual threads (one per task) unless an executor has been
+         * configured explicitly for the respective stage. This requires Java 21 or newer; on older
+         * JVMs the default executors are used instead.
+         */
+        public Builder useVirtualThreads(final boolean useVirtualThreads) {
+            this.useVirtualThreads = useVirtualThreads;
+            return this;
+        }
+
+        /**
+         * Rule out peers that have no key material from memory instead of asking the storage. The
+         * storage needs to support {@link Storage#getAddressesWithKeyMaterial()} and is scanned
+         * once per storage instance on the IO executor. Only enable this if every write to the
+         * storage goes through clients of this process; peers written to by anyone else would not
+         * be found. Disabled by default.
+         */
+        public Builder usePeerStateFilter(final boolean usePeerStateFilter) {
+            this.usePeerStateFilter = usePeerStateFilter;
+            return this;
+        }
+
         public Builder defaultSettings(final DefaultSettings defaultSettings) {
             Preconditions.checkArgument(
                     defaultSettings != null, "defaultSettings must not be null");
@@ -227,8 +311,22 @@ public class AutocryptClient extends AbstractAutocryptClient {
 
         public AutocryptClient build() {
             Preconditions.checkState(this.userId != null, "UserId must not be null");
+            final ListeningExecutorService ioExecutorService =
+                    this.ioExecutorService != null
+                            ? this.ioExecutorService
+                            : VirtualThreads.orFallback(
+                                    useVirtualThreads, MoreExecutors.newDirectExecutorService());
+            final ListeningExecutorService cryptoExecutorService =
+                    this.cryptoExecutorService != null
+                            ? this.cryptoExecutorService
+                            : VirtualThreads.orFallback(useVirtualThreads, CRYPTO_EXECUTOR);
             return new AutocryptClient(
-                    this.userId, this.storage, this.ioExecutorService, this.defaultSettings);
+                    this.userId,
+                    this.storage,
+                    ioExecutorService,
+                    cryptoExecutorService,
+                    this.defaultSettings,
+                    this.usePeerStateFilter);
         }
     }
 }
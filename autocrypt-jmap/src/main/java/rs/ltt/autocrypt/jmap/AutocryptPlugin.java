@@ -10,7 +10,9 @@ import com.google.common.collect.Iterables;
 import com.google.common.net.MediaType;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.time.Instant;
@@ -18,7 +20,12 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import org.apache.james.mime4j.MimeException;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.pgpainless.decryption_verification.DecryptionStream;
@@ -66,16 +73,31 @@ public class AutocryptPlugin extends PluginService.Plugin {
     private static final Email EMPTY_EMAIL_NO_RECIPIENTS =
             Email.builder().receivedAt(Instant.EPOCH).build();
 
+    private static final int MAX_PENDING_CACHED_EMAILS = 1024;
+
     private final String userId;
     private final Storage storage;
+    private final boolean useVirtualThreads;
 
     private final EmailCacheStagePlugin emailCacheStagePlugin = AutocryptPlugin.this::onCacheEmail;
+    private final Set<ListenableFuture<Void>> pendingCachedEmails = ConcurrentHashMap.newKeySet();
     private AutocryptClient autocryptClient;
+    private ListeningExecutorService ingestExecutorService;
     private final EmailBuildStagePlugin emailBuildStagePlugin = AutocryptPlugin.this::onBuildEmail;
 
     public AutocryptPlugin(final String userId, final Storage storage) {
+        this(userId, storage, false);
+    }
+
+    /**
+     * @param useVirtualThreads Run crypto work (including parsing downloaded messages) and
+     *     background header processing on virtual threads if the JVM supports them
+     */
+    public AutocryptPlugin(
+            final String userId, final Storage storage, final boolean useVirtualThreads) {
         this.userId = userId;
         this.storage = storage;
+        this.useVirtualThreads = useVirtualThreads;
     }
 
     public ListenableFuture<Upload> encryptAndUpload(
@@ -149,13 +171,14 @@ public class AutocryptPlugin extends PluginService.Plugin {
             final AttachmentRetriever attachmentRetriever,
             final IdentifiableEmailWithAddressesAndTime originalEmail,
             final Download download) {
+        final AutocryptClient autocryptClient = getAutocryptClient();
         final ListenableFuture<DecryptionStream> streamFuture =
-                getAutocryptClient().decrypt(download.getInputStream());
+                autocryptClient.decrypt(download.getInputStream());
         final ListenableFuture<Email> emailFuture =
                 Futures.transformAsync(
                         streamFuture,
                         ds -> this.parseMimeMessage(ds, blobId, attachmentRetriever, originalEmail),
-                        AutocryptClient.CRYPTO_EXECUTOR);
+                        autocryptClient.getCryptoExecutorService());
         HttpCalls.cancelCallOnCancel(emailFuture, download.getCall());
         return emailFuture;
     }
@@ -214,7 +237,9 @@ public class AutocryptPlugin extends PluginService.Plugin {
                         .userId(userId)
                         .storage(storage)
                         .ioExecutorService(muaSession.getIoExecutorService())
+                        .useVirtualThreads(useVirtualThreads)
                         .build();
+        this.ingestExecutorService = newIngestExecutorService();
         return ImmutableList.of(emailBuildStagePlugin, emailCacheStagePlugin);
     }
 
@@ -223,22 +248,64 @@ public class AutocryptPlugin extends PluginService.Plugin {
         return getAutocryptClient().injectAutocryptHeader(email);
     }
 
+    /**
+     * Autocrypt headers of cached emails are processed by a single background thread. If more than
+     * {@value #MAX_PENDING_CACHED_EMAILS} emails are waiting to be processed the caching thread
+     * processes the email itself. This limits memory usage while not blocking the caching thread on
+     * every email.
+     */
+    private static ListeningExecutorService newIngestExecutorService() {
+        final ThreadPoolExecutor threadPoolExecutor =
+                new ThreadPoolExecutor(
+                        1,
+                        1,
+                        60,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(MAX_PENDING_CACHED_EMAILS),
+                        new ThreadFactoryBuilder()
+                                .setNameFormat("autocrypt-ingest-%d")
+                                .setDaemon(true)
+                                .build(),
+                        new ThreadPoolExecutor.CallerRunsPolicy());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return MoreExecutors.listeningDecorator(threadPoolExecutor);
+    }
+
     private void onCacheEmail(final Email email) {
-        final AutocryptClient autocryptClient =
-                AutocryptClient.builder()
-                        .userId(userId)
-                        .storage(storage)
-                        .ioExecutorService(MoreExecutors.newDirectExecutorService())
-                        .build();
+        final ListenableFuture<Void> future =
+                getAutocryptClient().processAutocryptHeader(email, ingestExecutorService);
+        if (future.isDone()) {
+            logFailure(future);
+            return;
+        }
+        pendingCachedEmails.add(future);
+        future.addListener(
+                () -> {
+                    pendingCachedEmails.remove(future);
+                    logFailure(future);
+                },
+                MoreExecutors.directExecutor());
+    }
+
+    private static void logFailure(final ListenableFuture<Void> future) {
         try {
-            autocryptClient.processAutocryptHeader(email).get();
+            Futures.getDone(future);
         } catch (final ExecutionException e) {
-            final Throwable throwable = Throwables.getRootCause(e);
-            throw new RuntimeException("Unable to process autocrypt headers", throwable);
-        } catch (InterruptedException ignored) {
+            LOGGER.warn("Unable to process autocrypt headers", Throwables.getRootCause(e));
         }
     }
 
+    /**
+     * Autocrypt headers of cached emails are processed in the background. This method can be used
+     * to wait for the processing of all emails that have been cached so far.
+     *
+     * @return A future that completes once all currently pending emails have been processed
+     */
+    public ListenableFuture<Void> flush() {
+        return Futures.whenAllComplete(ImmutableList.copyOf(pendingCachedEmails))
+                .call(() -> null, MoreExecutors.directExecutor());
+    }
+
     public ListenableFuture<String> storeSetupMessage(final String passphrase) {
         return Futures.transformAsync(
                 getAutocryptClient().exportSecretKey(passphrase),
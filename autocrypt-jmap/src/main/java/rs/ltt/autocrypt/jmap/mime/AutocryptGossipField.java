@@ -0,0 +1,93 @@
+package rs.ltt.autocrypt.jmap.mime;
+
+import java.io.IOException;
+import java.util.Locale;
+import org.apache.james.mime4j.stream.Field;
+import org.apache.james.mime4j.util.ByteArrayBuffer;
+import org.apache.james.mime4j.util.ByteSequence;
+import rs.ltt.autocrypt.client.header.AutocryptHeader;
+import rs.ltt.autocrypt.client.header.Headers;
+
+/**
+ * An Autocrypt-Gossip header field that is serialized straight into its raw (folded) byte
+ * representation. mime4j’s message writer writes the raw bytes as is which saves the intermediate
+ * header value string and the folding that would otherwise be done for a {@link
+ * org.apache.james.mime4j.stream.RawField}.
+ */
+final class AutocryptGossipField implements Field {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final AutocryptHeader autocryptHeader;
+    private final ByteArrayBuffer raw;
+
+    private AutocryptGossipField(final AutocryptHeader autocryptHeader, final ByteArrayBuffer raw) {
+        this.autocryptHeader = autocryptHeader;
+        this.raw = raw;
+    }
+
+    static AutocryptGossipField of(final AutocryptHeader autocryptHeader) {
+        final ByteArrayBuffer raw = new ByteArrayBuffer(INITIAL_CAPACITY);
+        final ByteArrayBufferAppendable appendable = new ByteArrayBufferAppendable(raw);
+        appendable.append(Headers.AUTOCRYPT_GOSSIP).append(": ");
+        try {
+            autocryptHeader.writeTo(appendable, Headers.AUTOCRYPT_GOSSIP.length() + 2);
+        } catch (final IOException e) {
+            throw new AssertionError(e);
+        }
+        return new AutocryptGossipField(autocryptHeader, raw);
+    }
+
+    @Override
+    public String getName() {
+        return Headers.AUTOCRYPT_GOSSIP;
+    }
+
+    @Override
+    public String getNameLowerCase() {
+        return Headers.AUTOCRYPT_GOSSIP.toLowerCase(Locale.ROOT);
+    }
+
+    @Override
+    public String getBody() {
+        return autocryptHeader.toHeaderValue();
+    }
+
+    @Override
+    public ByteSequence getRaw() {
+        return raw;
+    }
+
+    /**
+     * Appends characters as single bytes. This matches how mime4j encodes header fields that don’t
+     * come with a raw representation of their own.
+     */
+    private static class ByteArrayBufferAppendable implements Appendable {
+
+        private final ByteArrayBuffer buffer;
+
+        private ByteArrayBufferAppendable(final ByteArrayBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public ByteArrayBufferAppendable append(final CharSequence charSequence) {
+            return append(charSequence, 0, charSequence.length());
+        }
+
+        @Override
+        public ByteArrayBufferAppendable append(
+                final CharSequence charSequence, final int start, final int end) {
+            for (int i = start; i < end; ++i) {
+                buffer.append(charSequence.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public ByteArrayBufferAppendable append(final char c) {
+            buffer.append(c);
+            return this;
+        }
+    }
+}
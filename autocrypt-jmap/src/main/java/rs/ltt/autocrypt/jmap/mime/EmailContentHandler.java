@@ -1,14 +1,29 @@
 package rs.ltt.autocrypt.jmap.mime;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Iterables;
-import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
 import com.google.common.net.MediaType;
-import java.io.ByteArrayOutputStream;
+import com.google.common.primitives.Ints;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import org.apache.james.mime4j.MimeException;
 import org.apache.james.mime4j.parser.ContentHandler;
 import org.apache.james.mime4j.stream.BodyDescriptor;
@@ -18,7 +33,6 @@ import org.slf4j.LoggerFactory;
 import rs.ltt.autocrypt.client.header.Attribute;
 import rs.ltt.autocrypt.client.header.AutocryptHeader;
 import rs.ltt.autocrypt.client.state.GossipRetriever;
-import rs.ltt.jmap.client.io.ByteStreams;
 import rs.ltt.jmap.common.entity.Email;
 import rs.ltt.jmap.common.entity.EmailBodyPart;
 import rs.ltt.jmap.common.entity.EmailBodyValue;
@@ -29,10 +43,25 @@ public class EmailContentHandler implements ContentHandler {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(EmailContentHandler.class);
 
+    /** Text parts of any size are turned into body values. */
+    public static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    private static final String BLOB_ID_PREFIX = "PTA-";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int MAXIMUM_CHARSET_CACHE_SIZE = 32;
+
+    private static final Cache<String, Optional<Charset>> CHARSETS =
+            CacheBuilder.newBuilder().maximumSize(MAXIMUM_CHARSET_CACHE_SIZE).build();
+
     private final Email.EmailBuilder emailBuilder = Email.builder();
     private final AttachmentRetriever attachmentRetriever;
     private final GossipRetriever gossipRetriever;
+    private final int maxInlineBodySize;
+    private final OversizedBodyHandling oversizedBodyHandling;
     private final byte[] blobIdSeed;
+    private final MessageDigest blobIdDigest = sha256();
     private final Map<Integer, List<EmailBodyPart>> alternativesMap = new HashMap<>();
     private final ArrayDeque<EmailBodyPart.EmailBodyPartBuilder> emailBodyPartBuilders =
             new ArrayDeque<>();
@@ -43,8 +72,31 @@ public class EmailContentHandler implements ContentHandler {
             final String blobId,
             final AttachmentRetriever attachmentRetriever,
             final GossipRetriever gossipRetriever) {
+        this(
+                blobId,
+                attachmentRetriever,
+                gossipRetriever,
+                NO_LIMIT,
+                OversizedBodyHandling.TRUNCATE);
+    }
+
+    /**
+     * @param maxInlineBodySize The maximum size in (decoded) bytes of a text part that is turned
+     *     into a body value
+     * @param oversizedBodyHandling What to do with text parts that exceed that size
+     */
+    public EmailContentHandler(
+            final String blobId,
+            final AttachmentRetriever attachmentRetriever,
+            final GossipRetriever gossipRetriever,
+            final int maxInlineBodySize,
+            final OversizedBodyHandling oversizedBodyHandling) {
+        Preconditions.checkArgument(
+                maxInlineBodySize >= 0, "maxInlineBodySize must not be negative");
         this.attachmentRetriever = attachmentRetriever;
         this.gossipRetriever = gossipRetriever;
+        this.maxInlineBodySize = maxInlineBodySize;
+        this.oversizedBodyHandling = Preconditions.checkNotNull(oversizedBodyHandling);
         this.blobIdSeed = blobId.getBytes(StandardCharsets.UTF_8);
     }
 
@@ -163,22 +215,14 @@ public class EmailContentHandler implements ContentHandler {
     public void body(BodyDescriptor bodyDescriptor, InputStream inputStream) throws IOException {
         final EmailBodyPart.EmailBodyPartBuilder bodyPartBuilder =
                 this.emailBodyPartBuilders.getLast();
+        // only leaf parts have a body; containers never get a blob id
+        bodyPartBuilder.blobId(blobId(this.partId));
         final EmailBodyPart emailBodyPart = bodyPartBuilder.build();
         final MediaType mediaType = emailBodyPart.getMediaType();
         final long bytesCopied;
         if (mediaType != null
                 && (mediaType.is(MediaTypes.TEXT_PLAIN) || mediaType.is(MediaTypes.TEXT_HTML))) {
-            final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            bytesCopied = ByteStreams.copy(inputStream, byteArrayOutputStream);
-            final String body =
-                    new String(byteArrayOutputStream.toByteArray(), StandardCharsets.UTF_8);
-            final EmailBodyValue emailBodyValue =
-                    EmailBodyValue.builder()
-                            .value(body)
-                            .isTruncated(false)
-                            .isEncodingProblem(false)
-                            .build();
-            emailBuilder.bodyValue(emailBodyPart.getPartId(), emailBodyValue);
+            bytesCopied = textBody(bodyPartBuilder, mediaType, bodyDescriptor, inputStream);
         } else {
             bytesCopied =
                     this.attachmentRetriever.onAttachmentRetrieved(emailBodyPart, inputStream);
@@ -186,6 +230,180 @@ public class EmailContentHandler implements ContentHandler {
         bodyPartBuilder.size(bytesCopied);
     }
 
+    private long textBody(
+            final EmailBodyPart.EmailBodyPartBuilder bodyPartBuilder,
+            final MediaType mediaType,
+            final BodyDescriptor bodyDescriptor,
+            final InputStream inputStream)
+            throws IOException {
+        final Optional<Charset> charset = charset(mediaType);
+        if (!charset.isPresent()) {
+            LOGGER.warn("Unsupported charset in {}. Falling back to UTF-8", mediaType);
+        }
+        final TextBody textBody;
+        if (oversizedBodyHandling == OversizedBodyHandling.ATTACHMENT
+                && maxInlineBodySize != NO_LIMIT) {
+            final ByteBuffer inline = readInline(inputStream, bodyDescriptor.getContentLength());
+            final InputStream inlineInputStream =
+                    new ByteArrayInputStream(inline.array(), 0, inline.limit());
+            if (inline.limit() > maxInlineBodySize) {
+                // the bytes read so far are replayed in front of the rest of the body
+                bodyPartBuilder.disposition("attachment");
+                return this.attachmentRetriever.onAttachmentRetrieved(
+                        bodyPartBuilder.build(),
+                        new SequenceInputStream(inlineInputStream, inputStream));
+            }
+            textBody =
+                    decode(inlineInputStream, inline.limit(), charset.or(StandardCharsets.UTF_8));
+        } else {
+            textBody =
+                    decode(
+                            inputStream,
+                            bodyDescriptor.getContentLength(),
+                            charset.or(StandardCharsets.UTF_8));
+        }
+        final EmailBodyValue emailBodyValue =
+                EmailBodyValue.builder()
+                        .value(textBody.value)
+                        .isTruncated(textBody.oversized)
+                        .isEncodingProblem(textBody.encodingProblem || !charset.isPresent())
+                        .build();
+        emailBuilder.bodyValue(bodyPartBuilder.build().getPartId(), emailBodyValue);
+        if (textBody.oversized) {
+            return textBody.bytesRead + ByteStreams.exhaust(inputStream);
+        }
+        return textBody.bytesRead;
+    }
+
+    /**
+     * Reads up to {@code maxInlineBodySize} bytes, plus one to find out if the part is longer than
+     * that, into a single array. The array only grows beyond the content length (or the buffer size
+     * if the length is unknown) if the body turns out to be longer.
+     *
+     * @return The array wrapped in a buffer whose limit is the number of bytes read
+     */
+    private ByteBuffer readInline(final InputStream inputStream, final long contentLength)
+            throws IOException {
+        final long limit = maxInlineBodySize + 1L;
+        final long initialSize = contentLength > 0 ? contentLength + 1 : BUFFER_SIZE;
+        byte[] buffer = new byte[(int) Math.min(limit, initialSize)];
+        int length = 0;
+        while (length < limit) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, (int) Math.min(limit, buffer.length * 2L));
+            }
+            final int read = inputStream.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        return ByteBuffer.wrap(buffer, 0, length);
+    }
+
+    /**
+     * @return The charset declared in the media type, UTF-8 if there is none or absent if the
+     *     declared charset is not supported
+     */
+    private static Optional<Charset> charset(final MediaType mediaType) {
+        final String name = Iterables.getFirst(mediaType.parameters().get("charset"), null);
+        if (name == null) {
+            // strictly speaking US-ASCII; UTF-8 is a superset that tolerates sloppy senders
+            return Optional.of(StandardCharsets.UTF_8);
+        }
+        try {
+            return CHARSETS.get(name.toLowerCase(Locale.ROOT), () -> lookupCharset(name));
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static Optional<Charset> lookupCharset(final String name) {
+        try {
+            return Optional.of(Charset.forName(name));
+        } catch (final IllegalArgumentException e) {
+            return Optional.absent();
+        }
+    }
+
+    /**
+     * Decodes up to {@code maxInlineBodySize} bytes straight into a {@link StringBuilder}. If the
+     * input is longer than that one additional byte is consumed to find out. Malformed or
+     * unmappable input is replaced and reported as an encoding problem.
+     */
+    private TextBody decode(
+            final InputStream inputStream, final long contentLength, final Charset charset)
+            throws IOException {
+        final CharsetDecoder decoder =
+                charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPORT)
+                        .onUnmappableCharacter(CodingErrorAction.REPORT);
+        final StringBuilder value = new StringBuilder(initialCapacity(contentLength));
+        final ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        final CharBuffer out = CharBuffer.allocate(BUFFER_SIZE);
+        long bytesRead = 0;
+        boolean oversized = false;
+        boolean encodingProblem = false;
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            final int length = (int) Math.min(in.remaining(), maxInlineBodySize - bytesRead);
+            final int read = length == 0 ? -1 : inputStream.read(in.array(), in.position(), length);
+            if (read == -1) {
+                endOfInput = true;
+                if (bytesRead == maxInlineBodySize && inputStream.read() != -1) {
+                    oversized = true;
+                    bytesRead++;
+                }
+            } else {
+                in.position(in.position() + read);
+                bytesRead += read;
+            }
+            in.flip();
+            // a character cut in half by the size limit is dropped rather than replaced
+            encodingProblem |= decode(decoder, in, out, value, endOfInput && !oversized);
+            in.compact();
+        }
+        if (!oversized) {
+            decoder.flush(out);
+            out.flip();
+            value.append(out);
+        }
+        return new TextBody(value.toString(), bytesRead, oversized, encodingProblem);
+    }
+
+    /**
+     * @return true if the input contained malformed or unmappable bytes
+     */
+    private static boolean decode(
+            final CharsetDecoder decoder,
+            final ByteBuffer in,
+            final CharBuffer out,
+            final StringBuilder value,
+            final boolean endOfInput) {
+        boolean encodingProblem = false;
+        CoderResult result;
+        do {
+            result = decoder.decode(in, out, endOfInput);
+            out.flip();
+            value.append(out);
+            out.clear();
+            if (result.isError()) {
+                in.position(in.position() + result.length());
+                value.append(decoder.replacement());
+                encodingProblem = true;
+            }
+        } while (!result.isUnderflow());
+        return encodingProblem;
+    }
+
+    private int initialCapacity(final long contentLength) {
+        if (contentLength <= 0) {
+            return Math.min(BUFFER_SIZE, maxInlineBodySize);
+        }
+        // decoding never yields more chars than there are bytes
+        return (int) Math.min(contentLength, maxInlineBodySize);
+    }
+
     @Override
     public void raw(InputStream inputStream) {}
 
@@ -230,17 +448,62 @@ public class EmailContentHandler implements ContentHandler {
         this.emailBodyPartBuilders.add(builder);
         this.partId++;
         builder.partId(String.valueOf(this.partId));
-        final String hash =
-                Hashing.sha256()
-                        .newHasher()
-                        .putInt(this.partId)
-                        .putBytes(blobIdSeed)
-                        .hash()
-                        .toString();
-        builder.blobId(String.format("PTA-%s-%d", hash, partId));
+    }
+
+    /**
+     * Creates the synthetic blob id of a leaf part. It is a combination of the PTA prefix
+     * (PlainTextAttachment), a SHA-256 over the part id and the blob id of the message and the part
+     * id itself. The part id is fed into the digest in little endian byte order as this is what the
+     * Guava Hasher used to do. Blob ids need to stay stable across versions; because the part id
+     * precedes the blob id of the message the digest state after the latter can not be reused.
+     */
+    private String blobId(final int partId) {
+        blobIdDigest.update(Ints.toByteArray(Integer.reverseBytes(partId)));
+        blobIdDigest.update(blobIdSeed);
+        final byte[] digest = blobIdDigest.digest();
+        return new StringBuilder(BLOB_ID_PREFIX.length() + digest.length * 2 + 12)
+                .append(BLOB_ID_PREFIX)
+                .append(BaseEncoding.base16().lowerCase().encode(digest))
+                .append('-')
+                .append(partId)
+                .toString();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     public Email buildEmail() {
         return this.emailBuilder.build();
     }
+
+    /** Determines what happens to text parts that exceed the maximum inline body size. */
+    public enum OversizedBodyHandling {
+        /** The body value holds the beginning of the part and is marked as truncated. */
+        TRUNCATE,
+        /** The part is handed to the {@link AttachmentRetriever} and becomes an attachment. */
+        ATTACHMENT
+    }
+
+    private static class TextBody {
+        private final String value;
+        private final long bytesRead;
+        private final boolean oversized;
+        private final boolean encodingProblem;
+
+        private TextBody(
+                final String value,
+                final long bytesRead,
+                final boolean oversized,
+                final boolean encodingProblem) {
+            this.value = value;
+            this.bytesRead = bytesRead;
+            this.oversized = oversized;
+            this.encodingProblem = encodingProblem;
+        }
+    }
 }
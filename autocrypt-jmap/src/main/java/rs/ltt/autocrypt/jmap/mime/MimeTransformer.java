@@ -21,9 +21,7 @@ import org.apache.james.mime4j.message.MultipartBuilder;
 import org.apache.james.mime4j.parser.MimeStreamParser;
 import org.apache.james.mime4j.stream.MimeConfig;
 import org.apache.james.mime4j.stream.NameValuePair;
-import org.apache.james.mime4j.stream.RawField;
 import rs.ltt.autocrypt.client.header.AutocryptHeader;
-import rs.ltt.autocrypt.client.header.Headers;
 import rs.ltt.autocrypt.client.state.GossipRetriever;
 import rs.ltt.jmap.common.entity.Email;
 import rs.ltt.jmap.common.entity.EmailBodyPart;
@@ -58,8 +56,7 @@ public class MimeTransformer {
                 throw new IllegalArgumentException(
                         "Gossip Headers SHOULD not include an encryption preference");
             }
-            builder.addField(
-                    new RawField(Headers.AUTOCRYPT_GOSSIP, autocryptHeader.toHeaderValue()));
+            builder.addField(AutocryptGossipField.of(autocryptHeader));
         }
         if (bodyPartTuples.size() == 1) {
             final BodyPartTuple bodyPartTuple =
@@ -155,11 +152,33 @@ public class MimeTransformer {
             final AttachmentRetriever attachmentRetriever,
             final GossipRetriever gossipRetriever)
             throws MimeException, IOException {
+        return transform(
+                inputStream,
+                blobId,
+                attachmentRetriever,
+                gossipRetriever,
+                EmailContentHandler.NO_LIMIT,
+                EmailContentHandler.OversizedBodyHandling.TRUNCATE);
+    }
+
+    public static Email transform(
+            final InputStream inputStream,
+            final String blobId,
+            final AttachmentRetriever attachmentRetriever,
+            final GossipRetriever gossipRetriever,
+            final int maxInlineBodySize,
+            final EmailContentHandler.OversizedBodyHandling oversizedBodyHandling)
+            throws MimeException, IOException {
         final MimeConfig mimeConfig = new MimeConfig.Builder().build();
         final MimeStreamParser mimeStreamParser = new MimeStreamParser(mimeConfig);
         mimeStreamParser.setContentDecoding(true);
         final EmailContentHandler emailContentHandler =
-                new EmailContentHandler(blobId, attachmentRetriever, gossipRetriever);
+                new EmailContentHandler(
+                        blobId,
+                        attachmentRetriever,
+                        gossipRetriever,
+                        maxInlineBodySize,
+                        oversizedBodyHandling);
         mimeStreamParser.setContentHandler(emailContentHandler);
         mimeStreamParser.parse(inputStream);
         return emailContentHandler.buildEmail();
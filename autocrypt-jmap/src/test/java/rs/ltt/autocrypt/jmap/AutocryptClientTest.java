@@ -118,6 +118,50 @@ public class AutocryptClientTest {
         assertThat(headerValue, containsString("prefer-encrypt=mutual"));
     }
 
+    @Test
+    public void injectAfterPreferenceChange() throws ExecutionException, InterruptedException {
+        final AutocryptClient autocryptClient =
+                AutocryptClient.builder().userId("alice@example.com").build();
+        final Email email =
+                Email.builder()
+                        .subject("This is a Test")
+                        .from(EmailAddress.builder().email("alice@example.com").build())
+                        .to(EmailAddress.builder().email("bob@example.com").build())
+                        .build();
+        final String first =
+                autocryptClient.injectAutocryptHeader(email).get().getAutocrypt().get(0);
+        final String second =
+                autocryptClient.injectAutocryptHeader(email).get().getAutocrypt().get(0);
+        Assertions.assertEquals(first, second);
+        assertThat(first, containsString("prefer-encrypt=nopreference"));
+
+        autocryptClient.setEncryptionPreference(EncryptionPreference.MUTUAL).get();
+
+        final String third =
+                autocryptClient.injectAutocryptHeader(email).get().getAutocrypt().get(0);
+        assertThat(third, containsString("prefer-encrypt=mutual"));
+    }
+
+    @Test
+    public void injectForDifferentlyCasedFrom() throws ExecutionException, InterruptedException {
+        final AutocryptClient autocryptClient =
+                AutocryptClient.builder().userId("alice@example.com").build();
+        final Email lowerCase =
+                Email.builder()
+                        .from(EmailAddress.builder().email("alice@example.com").build())
+                        .build();
+        final Email mixedCase =
+                Email.builder()
+                        .from(EmailAddress.builder().email("Alice@Example.com").build())
+                        .build();
+        final String first =
+                autocryptClient.injectAutocryptHeader(lowerCase).get().getAutocrypt().get(0);
+        final String second =
+                autocryptClient.injectAutocryptHeader(mixedCase).get().getAutocrypt().get(0);
+        Assertions.assertSame(first, second);
+        assertThat(second, startsWith("addr=alice@example.com;"));
+    }
+
     @Test
     public void headerDifferentFrom() throws ExecutionException, InterruptedException {
         final AutocryptClient autocryptClient =
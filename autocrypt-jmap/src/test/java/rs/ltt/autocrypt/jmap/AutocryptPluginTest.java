@@ -67,6 +67,7 @@ public class AutocryptPluginTest {
                             .build();
             mua.draft(email).get();
             mua.refresh().get();
+            mua.getPlugin(AutocryptPlugin.class).flush().get();
             final AutocryptClient autocryptClient =
                     mua.getPlugin(AutocryptPlugin.class).getAutocryptClient();
             final Decision decision =
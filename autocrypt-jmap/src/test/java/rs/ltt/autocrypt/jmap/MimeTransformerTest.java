@@ -3,6 +3,7 @@ package rs.ltt.autocrypt.jmap;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.MatcherAssert.assertThat;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.BaseEncoding;
 import com.google.common.io.ByteStreams;
@@ -29,10 +30,12 @@ import rs.ltt.autocrypt.client.header.ImmutableAutocryptHeader;
 import rs.ltt.autocrypt.client.state.GossipRetriever;
 import rs.ltt.autocrypt.client.state.GossipUpdate;
 import rs.ltt.autocrypt.jmap.mime.BodyPartTuple;
+import rs.ltt.autocrypt.jmap.mime.EmailContentHandler;
 import rs.ltt.autocrypt.jmap.mime.MimeTransformer;
 import rs.ltt.jmap.common.entity.Attachment;
 import rs.ltt.jmap.common.entity.Email;
 import rs.ltt.jmap.common.entity.EmailBodyPart;
+import rs.ltt.jmap.common.entity.EmailBodyValue;
 
 public class MimeTransformerTest {
 
@@ -158,6 +161,38 @@ public class MimeTransformerTest {
         Assertions.assertEquals(1, email.getTextBody().size());
     }
 
+    @Test
+    public void blobIdsAreStable() throws IOException, MimeException {
+        final Message.Builder builder = Message.Builder.of();
+        final MultipartBuilder mixedMultipartBuilder = MultipartBuilder.create("mixed");
+        mixedMultipartBuilder.addBodyPart(
+                BodyPartBuilder.create()
+                        .setBody("Hello World!", "plain", StandardCharsets.UTF_8)
+                        .build());
+        mixedMultipartBuilder.addBodyPart(
+                BodyPartBuilder.create()
+                        .setBody(BLACK_SQUARE_PNG, "image/png")
+                        .setContentTransferEncoding("base64")
+                        .setContentDisposition("attachment", "black_square.png"));
+        builder.setBody(mixedMultipartBuilder);
+        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        new DefaultMessageWriter().writeMessage(builder.build(), byteArrayOutputStream);
+        final Email email =
+                MimeTransformer.transform(
+                        new ByteArrayInputStream(byteArrayOutputStream.toByteArray()),
+                        "test",
+                        (attachment, inputStream) -> ByteStreams.exhaust(inputStream),
+                        NoopGossipReceiver.INSTANCE);
+        // blob ids are handed out to clients and must not change between versions. The expected
+        // values have been produced by SHA-256 over the little endian part id and the blob id.
+        Assertions.assertEquals(
+                "PTA-98401d5a6b3a11cdc673fa39effb800aa509864a142acb68ffbb71546758738c-2",
+                email.getTextBody().get(0).getBlobId());
+        Assertions.assertEquals(
+                "PTA-6a42e620697dea609b057658f5d2e768c0e36fec551ca942ce79b5ebc38a01f2-3",
+                email.getAttachments().get(0).getBlobId());
+    }
+
     @Test
     public void emailFromAlternative() throws IOException, MimeException {
         final Message.Builder builder = Message.Builder.of();
@@ -264,6 +299,119 @@ public class MimeTransformerTest {
         Assertions.assertEquals("alice@example.com", gossipUpdates.get(0).getFrom());
     }
 
+    @Test
+    public void emailFromLatin1Text() throws IOException, MimeException {
+        final Message.Builder builder = Message.Builder.of();
+        builder.setBody("Schöne Grüße", "plain", StandardCharsets.ISO_8859_1);
+        final Message message = builder.build();
+        final MessageWriter messageWriter = new DefaultMessageWriter();
+        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        messageWriter.writeMessage(message, byteArrayOutputStream);
+        final Email email =
+                MimeTransformer.transform(
+                        new ByteArrayInputStream(byteArrayOutputStream.toByteArray()),
+                        "test",
+                        (attachment, inputStream) -> 0L,
+                        NoopGossipReceiver.INSTANCE);
+        final EmailBodyPart textBody = email.getTextBody().get(0);
+        final EmailBodyValue bodyValue = email.getBodyValues().get(textBody.getPartId());
+        Assertions.assertEquals("Schöne Grüße", bodyValue.getValue());
+        Assertions.assertFalse(bodyValue.getIsEncodingProblem());
+    }
+
+    @Test
+    public void oversizedTextBodyIsTruncated() throws IOException, MimeException {
+        final Email email =
+                transformSimpleText(
+                        "Hello World! Schöne Grüße",
+                        14,
+                        EmailContentHandler.OversizedBodyHandling.TRUNCATE,
+                        new ArrayList<>());
+        Assertions.assertEquals(0, email.getAttachments().size());
+        final EmailBodyPart textBody = email.getTextBody().get(0);
+        final EmailBodyValue bodyValue = email.getBodyValues().get(textBody.getPartId());
+        // the size limit cuts the 'ö' in half
+        Assertions.assertEquals("Hello World! S", bodyValue.getValue());
+        Assertions.assertTrue(bodyValue.getIsTruncated());
+        Assertions.assertEquals(
+                "Hello World! Schöne Grüße".getBytes(StandardCharsets.UTF_8).length,
+                textBody.getSize());
+    }
+
+    @Test
+    public void oversizedTextBodyBecomesAttachment() throws IOException, MimeException {
+        final List<byte[]> attachments = new ArrayList<>();
+        final Email email =
+                transformSimpleText(
+                        "Hello World! Schöne Grüße",
+                        14,
+                        EmailContentHandler.OversizedBodyHandling.ATTACHMENT,
+                        attachments);
+        Assertions.assertEquals(1, attachments.size());
+        Assertions.assertArrayEquals(
+                "Hello World! Schöne Grüße".getBytes(StandardCharsets.UTF_8), attachments.get(0));
+        Assertions.assertEquals(1, email.getAttachments().size());
+        Assertions.assertTrue(email.getTextBody().isEmpty());
+        Assertions.assertTrue(email.getBodyValues().isEmpty());
+    }
+
+    @Test
+    public void oversizedTextBodyBeyondBufferSizeBecomesAttachment()
+            throws IOException, MimeException {
+        final String text = Strings.repeat("Hello World!\r\n", 2_000);
+        final List<byte[]> attachments = new ArrayList<>();
+        final Email email =
+                transformSimpleText(
+                        text,
+                        10_000,
+                        EmailContentHandler.OversizedBodyHandling.ATTACHMENT,
+                        attachments);
+        Assertions.assertEquals(1, attachments.size());
+        Assertions.assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), attachments.get(0));
+        Assertions.assertTrue(email.getBodyValues().isEmpty());
+    }
+
+    @Test
+    public void textBodyWithinLimit() throws IOException, MimeException {
+        final List<byte[]> attachments = new ArrayList<>();
+        final Email email =
+                transformSimpleText(
+                        "Hello World! Schöne Grüße",
+                        1024,
+                        EmailContentHandler.OversizedBodyHandling.ATTACHMENT,
+                        attachments);
+        Assertions.assertEquals(0, attachments.size());
+        final EmailBodyPart textBody = email.getTextBody().get(0);
+        final EmailBodyValue bodyValue = email.getBodyValues().get(textBody.getPartId());
+        Assertions.assertEquals("Hello World! Schöne Grüße", bodyValue.getValue());
+        Assertions.assertFalse(bodyValue.getIsTruncated());
+    }
+
+    private static Email transformSimpleText(
+            final String text,
+            final int maxInlineBodySize,
+            final EmailContentHandler.OversizedBodyHandling oversizedBodyHandling,
+            final List<byte[]> attachments)
+            throws IOException, MimeException {
+        final ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+        final BodyPartTuple textBody =
+                BodyPartTuple.of(
+                        EmailBodyPart.builder().mediaType(MediaType.PLAIN_TEXT_UTF_8).build(),
+                        text);
+        MimeTransformer.transform(ImmutableList.of(textBody), resultOutputStream);
+        return MimeTransformer.transform(
+                new ByteArrayInputStream(resultOutputStream.toByteArray()),
+                "test",
+                (attachment, inputStream) -> {
+                    final byte[] bytes = ByteStreams.toByteArray(inputStream);
+                    attachments.add(bytes);
+                    return bytes.length;
+                },
+                NoopGossipReceiver.INSTANCE,
+                maxInlineBodySize,
+                oversizedBodyHandling);
+    }
+
     private static class NoopGossipReceiver implements GossipRetriever {
 
         public static final GossipRetriever INSTANCE = new NoopGossipReceiver();